@@ -53,6 +53,14 @@ abstract class Authenticator {
 	final Entity entity() {return entity;}
 	
 	abstract boolean authenticate(boolean isProxy, EncodedStream stream);
+	
+	// called instead of authenticate when the peer resumed with a ticket issued 
+	// to the given client, null if the client was not authenticated
+	abstract boolean resumed(boolean isProxy, Address client);
+	
+	// the authenticated address of the client on the server side, null if the 
+	// client is not authenticated
+	Address client() {return null;}
 
 	/**
 	 * Retruns an authenticator factory.
@@ -78,7 +86,7 @@ abstract class Authenticator {
 			var challenge = new Challenge();
 			stream.write(challenge);
 			var data = stream.read(SignedData::new);
-			return challenge.verify(data, address.host());
+			return challenge.verify(data, address.host(), signer(data, mgr));
 		} else {
 			Challenge challenge = stream.read(Challenge::new);
 			stream.write(mgr.admin.signData(challenge.encode()));
@@ -86,6 +94,11 @@ abstract class Authenticator {
 		}
 	}
 
+	// derives the address of the signer through the key cache
+	private static KeyCache.Entry signer(SignedData data, EntityManager mgr) throws IOException {
+		return mgr.keys.get(data.getPublicKey());
+	}
+
 	// public services
 	static final class PublicAuthenticator extends Authenticator {
 		private final ServiceAddress address;
@@ -108,29 +121,29 @@ abstract class Authenticator {
 				return false;
 			}
 		}
+		
+		@Override
+		boolean resumed(boolean isProxy, Address client) {
+			return true;
+		}
 	}
 		
 	// restricted services
 	static final class RestrictedAuthenticator extends Authenticator {
 		private ServiceAddress address;
 		private EntityManager mgr;
+		private Address client;
 		
 		public RestrictedAuthenticator(ServiceAddress address, EntityManager mgr) {
 			this.address = address;
 			this.mgr = mgr;
 		}
 		
-		private boolean authenticate(Address addr) {
-			try {
-				var optional = mgr.authenticate(addr, address.id());
-				if(optional.isPresent()) {
-					entity = optional.get();
-					return true;
-				}
-				return false;
-			} catch(IOException e) {
-				return false;
-			}
+		private boolean authorize(Optional<Entity> optional, Address addr) {
+			if(optional.isEmpty()) return false;
+			entity = optional.get();
+			client = addr;
+			return true;
 		}
 		
 		@Override
@@ -151,20 +164,110 @@ abstract class Authenticator {
 					var challenge = new Challenge();
 					stream.write(challenge);					
 					var data = stream.read(SignedData::new);
-					var addr = new Address(data.getPublicKey());
-					if(!challenge.verify(data, addr)) return false;
-					return authenticate(addr);
+					var signer = signer(data, mgr);
+					if(!challenge.verify(data, signer.address, signer)) return false;
+					return authorize(mgr.authenticate(signer, address.id()), signer.address);
 				}
 			} catch(IOException e) {
 				return false;
 			}
 		}
 		
+		@Override
+		boolean resumed(boolean isProxy, Address client) {
+			if(!isProxy) {
+				try {
+					return client != null && authorize(mgr.authenticate(client, address.id()), client);
+				} catch(IOException e) {
+					return false;
+				}
+			}
+			// make sure the entity for the given address is still in the entity manager
+			var optional = mgr.entity(address.host());
+			if(optional.isEmpty()) return false;
+			entity = optional.get();
+			return true;
+		}
+		
+		@Override
+		Address client() {return client;}
+		
 		public static Supplier<Authenticator> factory(ServiceAddress address, EntityManager mgr) {
 			return () -> new RestrictedAuthenticator(address, mgr);
 		}
 	}
 	
+	// multiplexed peer connections - both sides prove their address once, services
+	// are then authorized per channel
+	static final class PeerAuthenticator extends Authenticator {
+		private Address peer;
+		// the cached key of an authenticated client
+		private KeyCache.Entry key;
+		private EntityManager mgr;
+		
+		// the peer is null when accepting a connection
+		PeerAuthenticator(Address peer, EntityManager mgr) {
+			this.peer = peer;
+			this.mgr = mgr;
+		}
+		
+		Address peer() {return peer;}
+		
+		@Override
+		boolean resumed(boolean isProxy, Address client) {
+			if(isProxy) return true;
+			if(client == null) return false;
+			peer = client;
+			return true;
+		}
+		
+		@Override
+		Address client() {return peer;}
+		
+		// returns the entity of the peer if allowed to use the restricted service with the given id
+		Optional<Entity> authorize(ServiceId id) {
+			try {
+				return key != null ? mgr.authenticate(key, id) : mgr.authenticate(peer, id);
+			} catch(IOException e) {
+				return Optional.empty();
+			}
+		}
+		
+		@Override
+		public boolean authenticate(boolean isProxy, EncodedStream stream) {
+			try {
+				if(isProxy) {
+					if(!verify(stream, peer)) return false;
+					sign(stream);
+				} else {
+					sign(stream);
+					var challenge = new Challenge();
+					stream.write(challenge);
+					var data = stream.read(SignedData::new);
+					var signer = signer(data, mgr);
+					if(!challenge.verify(data, signer.address, signer)) return false;
+					peer = signer.address;
+					key = signer;
+				}
+				return true;
+			} catch(IOException e) {
+				return false;
+			}
+		}
+		
+		private boolean verify(EncodedStream stream, Address address) throws IOException {
+			var challenge = new Challenge();
+			stream.write(challenge);
+			var data = stream.read(SignedData::new);
+			return challenge.verify(data, address, signer(data, mgr));
+		}
+		
+		private void sign(EncodedStream stream) throws IOException {
+			var challenge = stream.read(Challenge::new);
+			stream.write(mgr.admin.signData(challenge.encode()));
+		}
+	}
+	
 	private static final class Challenge implements Encodable {
 		static final int SIZE = 16;
 		private final byte[] b = new byte[SIZE];
@@ -184,10 +287,10 @@ abstract class Authenticator {
 		@Override
 		public void write(VarOutput out) throws IOException {out.write(b);}
 	
-		boolean verify(SignedData data, Address address) {
+		// the signer is the cached key of the data
+		boolean verify(SignedData data, Address address, KeyCache.Entry signer) {
 			try {
-				var addr = new Address(data.getPublicKey());
-				return data.verify(data.getPublicKey()) && address.equals(addr) && Arrays.equals(b, data.data());
+				return address.equals(signer.address) && Arrays.equals(b, data.data()) && data.verify(data.getPublicKey());
 			} catch(IOException e) {
 				return false;
 			}
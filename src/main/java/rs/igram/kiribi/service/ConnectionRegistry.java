@@ -0,0 +1,122 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import rs.igram.kiribi.net.Address;
+
+/**
+ * Tracks the open connections of a service admin. Incoming connections are
+ * admitted once authenticated, subject to a limit overall and per peer address.
+ * When a limit is reached the new connection is refused, or if eviction is
+ * enabled, the least recently active connection it competes with is closed.
+ *
+ * @author Michael Sargent
+ */
+final class ConnectionRegistry {
+	static final int DEFAULT_MAX_CONNECTIONS = 4096;
+	static final int DEFAULT_MAX_PER_PEER = 64;
+	
+	private final Set<Transponder> connections = ConcurrentHashMap.newKeySet();
+	// admitted incoming connections - guarded by this
+	private final Map<Transponder, Address> incoming = new HashMap<>();
+	private final Map<Address, Set<Transponder>> peers = new HashMap<>();
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int maxPerPeer = DEFAULT_MAX_PER_PEER;
+	private boolean evict;
+	
+	synchronized void setLimits(int maxConnections, int maxPerPeer, boolean evict) {
+		this.maxConnections = maxConnections;
+		this.maxPerPeer = maxPerPeer;
+		this.evict = evict;
+	}
+	
+	void add(Transponder t) {
+		connections.add(t);
+	}
+	
+	void remove(Transponder t) {
+		connections.remove(t);
+		synchronized(this) {
+			unlink(t);
+		}
+	}
+	
+	int size() {
+		return connections.size();
+	}
+	
+	// admits an authenticated incoming connection, the peer is null for clients 
+	// of public services - returns false if the connection must be refused
+	boolean admit(Transponder t, Address peer) {
+		Transponder victim = null;
+		synchronized(this) {
+			var group = peer == null ? null : peers.get(peer);
+			if(group != null && group.size() >= maxPerPeer) {
+				if(!evict) return false;
+				victim = idlest(group);
+			} else if(incoming.size() >= maxConnections) {
+				if(!evict) return false;
+				victim = idlest(incoming.keySet());
+			}
+			if(victim != null) unlink(victim);
+			incoming.put(t, peer);
+			if(peer != null) peers.computeIfAbsent(peer, k -> new HashSet<>()).add(t);
+		}
+		if(victim != null) victim.evicted();
+		return true;
+	}
+	
+	// closes all connections
+	void terminate() {
+		connections.forEach(Transponder::terminate);
+		connections.clear();
+		synchronized(this) {
+			incoming.clear();
+			peers.clear();
+		}
+	}
+	
+	private void unlink(Transponder t) {
+		var peer = incoming.remove(t);
+		if(peer == null) return;
+		var group = peers.get(peer);
+		if(group != null && group.remove(t) && group.isEmpty()) peers.remove(peer);
+	}
+	
+	// the least recently active connection, the scan only runs when full
+	private static Transponder idlest(Set<Transponder> group) {
+		Transponder idlest = null;
+		for(var t : group) {
+			if(idlest == null || t.lastActive() - idlest.lastActive() < 0) idlest = t;
+		}
+		return idlest;
+	}
+}
@@ -0,0 +1,69 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.io.VarInput;
+import rs.igram.kiribi.io.VarOutput;
+
+/**
+ * An instance of this class represents the settings each side of a connection 
+ * advertises to its peer once authenticated.
+ *
+ * @author Michael Sargent
+ */
+final class ConnectionSettings implements Encodable {
+	private static final int SERIAL_VERSION = 1;
+	
+	// the maximum number of outstanding requests accepted from the peer
+	final int window;
+	// whether payloads may be compressed - used only if both sides agree
+	final boolean compression;
+	
+	ConnectionSettings(ServiceAdmin admin) {
+		this(admin.requestWindow(), admin.compressionThreshold() > 0);
+	}
+	
+	ConnectionSettings(int window, boolean compression) {
+		this.window = window;
+		this.compression = compression;
+	}
+	
+	ConnectionSettings(VarInput in) throws IOException {
+		var serialVersion = in.readUnsignedByte();
+		window = in.readInt();
+		if(window < 1) throw new IOException("Invalid request window: "+window);
+		compression = serialVersion > 0 ? in.readBoolean() : false;
+	}
+	
+	@Override
+	public void write(VarOutput out) throws IOException {
+		out.writeByte(SERIAL_VERSION);
+		out.writeInt(window);
+		out.writeBoolean(compression);
+	}
+}
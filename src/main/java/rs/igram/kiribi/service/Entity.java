@@ -27,7 +27,10 @@ package rs.igram.kiribi.service;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Consumer;
@@ -37,6 +40,7 @@ import rs.igram.kiribi.io.Encodable;
 import rs.igram.kiribi.io.VarInput; 
 import rs.igram.kiribi.io.VarInputStream; 
 import rs.igram.kiribi.io.VarOutput;
+import rs.igram.kiribi.service.util.ConcurrentLongMap;
 import rs.igram.kiribi.service.util.ConsumerSupport;
 
 /**
@@ -46,6 +50,8 @@ import rs.igram.kiribi.service.util.ConsumerSupport;
  */
 public final class Entity implements Comparable<Entity>, Cloneable, Encodable {
 	private static final int SERIAL_VERSION = 0;
+	// number of sent versions kept to compute deltas from
+	private static final int HISTORY = 8;
 	
 	private final ConsumerSupport<String> nameSupport = new ConsumerSupport<>();
 	private final ConsumerSupport<Boolean> pendingSupport = new ConsumerSupport<>();
@@ -57,6 +63,20 @@ public final class Entity implements Comparable<Entity>, Cloneable, Encodable {
 	private boolean pending = true;
 	// extensions for future releases
 	private byte[] ext = new byte[0];
+	
+	// exchange state - versions of the exported services recently sent to the peer, 
+	// the version the peer last reported holding, and whether imported holds a 
+	// version sent by the peer
+	private final Map<Long, Services> sent = new LinkedHashMap<>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Services> eldest) {
+			return size() > HISTORY;
+		}
+	};
+	private long acked = -1;
+	private boolean received;
+	// set when an exchange changes the imported services, until they are stored
+	private boolean importedChanged;
 
 	/**
 	 * Initializes a newly created <code>Entity</code> object.
@@ -228,12 +248,12 @@ public final class Entity implements Comparable<Entity>, Cloneable, Encodable {
 	/** 
 	 * Returns the set of descriptors of services this entity has made available. 
 	 *
-	 * @return The set of descriptors of services this entity has made available
+	 * @return An unmodifiable set of descriptors of services this entity has made available
 	 */
 	public Set<Descriptor> availableContent()  {
 		return imported == null ?
 			new HashSet<Descriptor>() :
-			imported.descriptors;
+			Collections.unmodifiableSet(imported.descriptors);
 	}
 	
 	/**
@@ -300,7 +320,9 @@ public final class Entity implements Comparable<Entity>, Cloneable, Encodable {
 
 	void set(Entity e) {
 		setName(e.getName());
-		exported = e.exported;
+		// keep versions increasing so each version sent to the peer is unique
+		var version = Math.max(exported.version, e.exported.version) + 1;
+		exported = new Services(version, e.exported.ids, e.exported.descriptors);
 	}
 
 	@Override
@@ -322,20 +344,76 @@ public final class Entity implements Comparable<Entity>, Cloneable, Encodable {
 	 * @param isProxy The proxy flag.
 	 * @param address The service address to remove.
 	 */	
-	public void deleted(boolean isProxy, final ServiceAddress address){
+	public synchronized void deleted(boolean isProxy, final ServiceAddress address){
 		if(isProxy) {
 			imported.delete(address);
+			// no longer the peer's version - ask for a full snapshot
+			received = false;
 		} else {
-			exported.delete(address);
+			exported = exported.without(address);
 		}
 	}
 
-	ExchangeData exchange() {
-		return new ExchangeData(exported == null ? new Services() : exported);
+	// the exported services as changes from the version the peer holds, or in full
+	synchronized ExchangeData exchange() {
+		var current = exported == null ? new Services() : exported;
+		sent.put(current.version, current);
+		var base = acked < 0 ? null : sent.get(acked);
+		return base == null ?
+			new ExchangeData(known(), current) :
+			new ExchangeData(known(), base, current);
+	}
+	
+	// the exported services in full
+	synchronized ExchangeData snapshot() {
+		var current = exported == null ? new Services() : exported;
+		sent.put(current.version, current);
+		return new ExchangeData(known(), current);
+	}
+	
+	// returns false if the value is a delta from a version not held - known() is then 
+	// -1, asking the peer for a snapshot
+	synchronized boolean exchange(ExchangeData value) {
+		acked = value.known;
+		var version = imported == null ? -1 : imported.version;
+		if(value.services != null) {
+			imported = value.services;
+			received = true;
+		} else if(received && imported.version == value.base) {
+			imported = imported.apply(value);
+		} else {
+			received = false;
+			return false;
+		}
+		if(imported.version != version) importedChanged = true;
+		return true;
+	}
+	
+	// returns whether an exchange changed the imported services since last called
+	synchronized boolean importedChanged() {
+		var changed = importedChanged;
+		importedChanged = false;
+		return changed;
+	}
+	
+	// the version of the exported services, changed whenever the grants change
+	synchronized long grants() {
+		return exported == null ? -1 : exported.version;
+	}
+	
+	// the version of the peer's services held, -1 if they must be sent in full
+	synchronized long known() {
+		return received ? imported.version : -1;
 	}
 	
-	void exchange(ExchangeData value) {
-		imported = value.services;
+	// called when the peer reports the version of the exported services it holds
+	synchronized void acknowledged(long version) {
+		acked = version;
+	}
+	
+	// whether the peer reported holding the version of the exported services sent
+	synchronized boolean acknowledged(ExchangeData value) {
+		return acked == value.version();
 	}
 
 	@Override
@@ -377,6 +455,8 @@ public final class Entity implements Comparable<Entity>, Cloneable, Encodable {
 		private final long version;
 		private final Set<ServiceId> ids = new HashSet<>();
 		private final Set<Descriptor> descriptors = new HashSet<>();
+		// descriptors by service id value
+		private final ConcurrentLongMap<Descriptor> index = new ConcurrentLongMap<>();
 		
 		Services() {
 			version = 0l;
@@ -386,12 +466,18 @@ public final class Entity implements Comparable<Entity>, Cloneable, Encodable {
 			this.version = version;
 			this.ids.addAll(ids);
 			this.descriptors.addAll(descriptors);
+			index();
 		}
 		
 		Services(VarInput in) throws IOException {
 			version = in.readLong();
 			in.read(ids, ServiceId::new);
 			in.read(descriptors, Descriptor::new);
+			index();
+		}
+		
+		private void index() {
+			descriptors.forEach(d -> index.put(d.getAddress().id().value(), d));
 		}
 
 		@Override
@@ -402,42 +488,128 @@ public final class Entity implements Comparable<Entity>, Cloneable, Encodable {
 		}
 		
 		boolean contains(ServiceId id) {
-			if(ids.contains(id)) return true;
-			return descriptors.stream().anyMatch(d -> d.getAddress().id().equals(id));
+			return ids.contains(id) || index.containsKey(id.value());
 		}
 		
 		Optional<Descriptor> content(ServiceId id) {
-			return descriptors.stream()
-				.filter(d -> d.getAddress().id().equals(id))
-				.findAny();
+			return Optional.ofNullable(index.get(id.value()));
+		}
+		
+		// returns a copy without the service, with the next version
+		Services without(ServiceAddress address) {
+			if(descriptors.stream().noneMatch(d -> d.getAddress().equals(address))) return this;
+			var remaining = new HashSet<>(descriptors);
+			remaining.removeIf(d -> d.getAddress().equals(address));
+			return new Services(version + 1, ids, remaining);
+		}
+		
+		// returns the services with the changes of a delta applied
+		Services apply(ExchangeData delta) {
+			var i = new HashSet<>(ids);
+			i.removeAll(delta.removedIds);
+			i.addAll(delta.addedIds);
+			var d = new HashSet<>(descriptors);
+			d.removeIf(descriptor -> delta.removed.contains(descriptor.getAddress()));
+			d.addAll(delta.added);
+			return new Services(delta.version, i, d);
 		}
 		
-		void delete(ServiceAddress address) {
-			descriptors.removeIf(d -> d.getAddress().equals(address));
+		synchronized void delete(ServiceAddress address) {
+			var id = address.id().value();
+			if(!descriptors.removeIf(d -> d.getAddress().equals(address))) return;
+			var indexed = index.get(id);
+			if(indexed == null || !indexed.getAddress().equals(address)) return;
+			// another host may provide a service with the same id
+			index.remove(id);
+			descriptors.stream()
+				.filter(d -> d.getAddress().id().value() == id)
+				.findAny()
+				.ifPresent(d -> index.put(id, d));
 		}
 		
 		@Override
 		public String toString() {return "version:"+version+"\n"+ids+"\n"+descriptors;}
 	}
 	
-	// public key and services to be exported/imported
+	// services to be exported/imported, either in full or as the changes from a 
+	// version the receiver holds - known is the version of the receiver's services 
+	// the sender holds
 	static class ExchangeData implements Encodable {
+		private final long known;
+		// full snapshot, null for a delta
 		private final Services services;
+		// delta
+		private long base;
+		private long version;
+		private final Set<ServiceId> addedIds = new HashSet<>();
+		private final Set<ServiceId> removedIds = new HashSet<>();
+		private final Set<Descriptor> added = new HashSet<>();
+		private final Set<ServiceAddress> removed = new HashSet<>();
 		
-		private ExchangeData(Services services) {
+		private ExchangeData(long known, Services services) {
+			this.known = known;
 			this.services = services;
 		}
 		
+		private ExchangeData(long known, Services from, Services to) {
+			this.known = known;
+			services = null;
+			base = from.version;
+			version = to.version;
+			if(from == to) return;
+			to.ids.stream().filter(id -> !from.ids.contains(id)).forEach(addedIds::add);
+			from.ids.stream().filter(id -> !to.ids.contains(id)).forEach(removedIds::add);
+			to.descriptors.stream().filter(d -> !from.descriptors.contains(d)).forEach(added::add);
+			// changed descriptors are removed before the new ones are added
+			from.descriptors.stream()
+				.filter(d -> !to.descriptors.contains(d))
+				.forEach(d -> removed.add(d.getAddress()));
+		}
+		
 		ExchangeData(VarInput in) throws IOException {
-			services = new Services(in);
+			known = in.readLong();
+			if(in.readBoolean()) {
+				services = new Services(in);
+			} else {
+				services = null;
+				base = in.readLong();
+				version = in.readLong();
+				in.read(addedIds, ServiceId::new);
+				in.read(removedIds, ServiceId::new);
+				in.read(added, Descriptor::new);
+				in.read(removed, ServiceAddress::new);
+			}
 		}
 
+		boolean isDelta() {return services == null;}
+		
+		// the version of the receiver's services the sender holds, -1 if none
+		long known() {return known;}
+		
+		// the version of the services sent
+		long version() {return services == null ? version : services.version;}
+		
 		@Override
 		public void write(VarOutput out) throws IOException {
-			out.write(services);
+			out.writeLong(known);
+			out.writeBoolean(services != null);
+			if(services != null) {
+				out.write(services);
+			} else {
+				out.writeLong(base);
+				out.writeLong(version);
+				out.write(addedIds);
+				out.write(removedIds);
+				out.write(added);
+				out.write(removed);
+			}
 		}
 		
 		@Override
-		public String toString() {return services.toString();}
+		public String toString() {
+			return services != null ? 
+				services.toString() :
+				"delta:"+base+"->"+version+"\n+"+addedIds+"\n-"+removedIds+"\n+"+added+"\n-"+removed;
+		}
 	}
 }
@@ -25,15 +25,21 @@
 package rs.igram.kiribi.service;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
@@ -46,8 +52,10 @@ import rs.igram.kiribi.net.Endpoint;
 import rs.igram.kiribi.net.NetworkExecutor;
 import rs.igram.kiribi.net.ServerEndpoint;
 import rs.igram.kiribi.service.util.CompletionListener;
+import rs.igram.kiribi.service.util.TimerWheel;
 
 import static java.util.logging.Level.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
@@ -60,25 +68,51 @@ public final class EntityManager {
 	
 	private	static final byte CLIENT_REQUEST_DATA_EXCHANGE = 100;
 	private static final byte SERVICE_RESPONSE_DATA_EXCHANGE = 100;
+	static final long DEFAULT_EXCHANGE_WINDOW = 250;
+	static final int DEFAULT_EXCHANGE_PARALLELISM = 16;
+	static final long DEFAULT_EXCHANGE_IDLE_TIMEOUT = 60_000;
+	static final int DEFAULT_MAX_EXCHANGE_SESSIONS = 64;
 	
-	private final Map<Address, ExchangeSession> sessions = 
-		Collections.synchronizedMap(new HashMap<Address, ExchangeSession>());
+	// open exchange sessions by peer in access order - guarded by itself, idle 
+	// sessions are closed by a periodic sweep and reopened on demand
+	private final LinkedHashMap<Address, ExchangeSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+	// replaced sessions answering an exchange, closed by the sweep once done - 
+	// guarded by sessions
+	private final List<ExchangeSession> retired = new ArrayList<>();
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	private volatile long idleTimeout = DEFAULT_EXCHANGE_IDLE_TIMEOUT;
+	private volatile int maxSessions = DEFAULT_MAX_EXCHANGE_SESSIONS;
 	private List<Entity> entities;
+	// entities by address - the list above is kept for its order, lookups use the index
+	private final Map<Address, Entity> index = new ConcurrentHashMap<>();
 	private Consumer<Entity> onExchange;
 	private boolean shutdown;
+	private final ExchangeScheduler<Entity> scheduler;
+	// persists changes if set
+	private volatile EntityStore store;
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	// the version of the grants of each entity when last revoked, to tell grant 
+	// changes from other updates
+	private final Map<Address, Long> grants = new ConcurrentHashMap<>();
 
 	ServiceAdmin admin;
+	// addresses and entities of the keys seen during authentication
+	final KeyCache keys = new KeyCache(256);
 	
 	/**
 	 * Initializes a newly created <code>EntityManager</code> object
 	 * with the given arguents.
 	 *
-	 * @param entities The list of entities to manage. Can be empty.
+	 * @param entities The list of entities to manage. Can be empty. Entities must then 
+	 * be added and deleted through this entity manager.
 	 * @param admin The service admin which will be associated with this entity manager.
 	 */
 	EntityManager(List<Entity> entities, ServiceAdmin admin) {
-		this.entities = entities;
+		this.entities = entities == null ? new ArrayList<>() : entities;
 		this.admin = admin;
+		this.entities.forEach(this::index);
+		scheduler = new ExchangeScheduler<>(admin.timer, admin.executor::submit, Entity::address, 
+			this::exchangeNow, DEFAULT_EXCHANGE_WINDOW, MILLISECONDS, DEFAULT_EXCHANGE_PARALLELISM);
 		
 		var service = new ExchangeService(admin.address(ServiceId.ENTITY));
 		admin.activate(service);
@@ -92,12 +126,59 @@ public final class EntityManager {
 	public void setOnExchange(Consumer<Entity> value) {onExchange = value;}
 	
 	/**
-	 * Returns the list of managed entities.
+	 * Set a listener to be notified when a batch of exchanges completes, with the 
+	 * entities exchanged and the entities whose exchange failed.
+	 *
+	 * @param value listener to be notified of completed exchange batches.
+	 */	
+	public void setOnExchangeBatch(BiConsumer<List<Entity>, List<Entity>> value) {
+		scheduler.setListener(value);
+	}
+	
+	/**
+	 * Sets how exchanges are batched. Entities to be exchanged are collected for 
+	 * the duration of the window, so an entity updated repeatedly is exchanged once,
+	 * then exchanged with at most <code>parallelism</code> exchanges in progress.
+	 * The defaults are 250 milliseconds and 16 exchanges.
+	 *
+	 * @param window The time to collect entities to exchange.
+	 * @param unit The time unit of the window.
+	 * @param parallelism The maximum number of exchanges in progress.
+	 * @throws IllegalArgumentException if window is negative or parallelism is not positive.
+	 */	
+	public void setExchangeBatching(long window, TimeUnit unit, int parallelism) {
+		if(window < 0) throw new IllegalArgumentException("window must not be negative");
+		if(parallelism < 1) throw new IllegalArgumentException("parallelism must be positive");
+		scheduler.configure(window, unit, parallelism);
+	}
+	
+	/**
+	 * Sets when exchange sessions are closed. An exchange session keeps a connection 
+	 * to its peer open between exchanges, it is closed once it has been idle for 
+	 * the idle timeout, or when more than <code>max</code> sessions are open, 
+	 * and reopened on the next exchange. The defaults are 60 seconds and 64 sessions.
+	 *
+	 * @param idleTimeout The time after which idle sessions are closed.
+	 * @param unit The time unit of the idle timeout.
+	 * @param max The maximum number of open exchange sessions.
+	 * @throws IllegalArgumentException if idleTimeout or max is not positive.
+	 */	
+	public void setExchangeSessionLimits(long idleTimeout, TimeUnit unit, int max) {
+		if(idleTimeout < 1) throw new IllegalArgumentException("idleTimeout must be positive");
+		if(max < 1) throw new IllegalArgumentException("max must be positive");
+		this.idleTimeout = unit.toMillis(idleTimeout);
+		maxSessions = max;
+		evict(false);
+	}
+	
+	/**
+	 * Returns an unmodifiable view of the list of managed entities. Entities are
+	 * added and removed with {@link #add(Entity)} and {@link #delete(Entity)}.
 	 *
 	 * @return The list of managed entities.
 	 */	
 	public synchronized List<Entity> entities() {
-		return entities;
+		return Collections.unmodifiableList(entities);
 	}
 
 	/**
@@ -107,7 +188,12 @@ public final class EntityManager {
 	 * @throws IOException if there was a problem adding the entity.
 	 */	
 	public void add(Entity entity) throws IOException {
-		entities.add(entity);
+		synchronized(this) {
+			entities.add(entity);
+			index(entity);
+		}
+		changed(entity);
+		persist(entity);
 		exchange(entity);
 	}
 
@@ -118,39 +204,114 @@ public final class EntityManager {
 	 * @throws IOException if there was a problem updating the entity.
 	 */	
 	public void update(Entity entity) throws IOException {
-		update(entity, true);
+		if(grantsChanged(entity)) changed(entity);
+		persist(entity);
+		exchange(entity);
 	}
 	
-	private void update(Entity entity, boolean exchange) throws IOException {
-		if(exchange) exchange(entity);
+	// called once an exchange has updated the services the entity made available, 
+	// which authentication doesn't depend on
+	private void exchanged(Entity entity) throws IOException {
+		persist(entity);
 	}
 
 	/**
-	 * Exchanges an entity.
+	 * Exchanges an entity. The exchange runs with the next batch. Entities without
+	 * an address have no peer to exchange with and are ignored.
 	 *
 	 * @param entity The entity to be exchanged.
 	 */	
 	public void exchange(Entity entity) {
-		admin.executor.submit(() -> {
-			try {
-				var address = new ServiceAddress(ServiceId.ENTITY, entity.address());
-				var session = sessions.get(entity.address());
-				if(session == null) {
-					session = session(null, entity);
-					session.connect(admin);
+		if(entity.address() == null) return;
+		scheduler.schedule(entity);
+	}
+	
+	// called by the scheduler - the peer could be offline or we're shutting down
+	private void exchangeNow(Entity entity) throws ServiceException {
+		ExchangeSession session;
+		synchronized(sessions) {
+			session = sessions.get(entity.address());
+		}
+		if(session == null || !session.isOpen()) {
+			session = session(null, entity);
+			session.connect(admin);
+		}
+		session.exchange(entity, 15);
+	}
+	
+	private void register(ExchangeSession session) {
+		ExchangeSession replaced;
+		synchronized(sessions) {
+			replaced = sessions.put(session.entity().address(), session);
+		}
+		// both peers may have connected at once - keep only the newer session, closing
+		// the other once its exchange in progress, if any, has finished
+		if(replaced != null && replaced != session) {
+			replaced.replaced = true;
+			if(replaced.busy.get() == 0) {
+				replaced.close();
+			} else {
+				synchronized(sessions) {
+					retired.add(replaced);
 				}
-				session.exchange(entity, 15);
-			} catch(ServiceException e) {
-				switch(e.type) {
-				case INTERRUPTED :
-					// shutdown - ignore 
-					break;
-				default:
-					// peer could be offline - just eat exception
-					break;
+			}
+		}
+		evict(false);
+		if(sweeping.compareAndSet(false, true)) scheduleSweep();
+	}
+	
+	private void unregister(ExchangeSession session) {
+		synchronized(sessions) {
+			sessions.remove(session.entity().address(), session);
+		}
+	}
+	
+	// closes the least recently used sessions above the maximum, and if idle is 
+	// true those idle for the idle timeout - sessions in use are kept
+	void evict(boolean idle) {
+		var evicted = new ArrayList<ExchangeSession>();
+		var deadline = System.nanoTime() - MILLISECONDS.toNanos(idleTimeout);
+		synchronized(sessions) {
+			var excess = sessions.size() - maxSessions;
+			var i = sessions.values().iterator();
+			while(i.hasNext()) {
+				var s = i.next();
+				if(s.busy.get() > 0) continue;
+				if(excess > 0 || (idle && s.used - deadline < 0)) {
+					i.remove();
+					evicted.add(s);
+					excess--;
+				}
+			}
+			retired.removeIf(s -> s.busy.get() == 0 && evicted.add(s));
+		}
+		evicted.forEach(Session::close);
+	}
+	
+	private void scheduleSweep() {
+		try {
+			admin.timer.schedule(new TimerWheel.Timeout() {
+				@Override
+				protected void expired() {
+					// hand off the wheel thread
+					admin.executor.submit(EntityManager.this::sweep);
 				}
+			}, idleTimeout / 2, MILLISECONDS);
+		} catch(IllegalStateException e) {
+			// shut down
+			sweeping.set(false);
+		}
+	}
+	
+	private void sweep() {
+		evict(true);
+		synchronized(sessions) {
+			if(sessions.isEmpty() && retired.isEmpty()) {
+				sweeping.set(false);
+				return;
 			}
-		});		
+		}
+		scheduleSweep();
 	}
 	
 	private ExchangeSession session(CompletionListener<Entity> handler, Entity entity) {
@@ -164,7 +325,39 @@ public final class EntityManager {
 	 * @param entity The entity to be deleted.
 	 */	
 	public void delete(Entity entity) {
-		entities.remove(entity);
+		synchronized(this) {
+			entities.remove(entity);
+			var address = entity.address();
+			if(address != null && index.remove(address, entity)) {
+				grants.remove(address);
+				// another entity may share the address
+				for(var e : entities) {
+					if(address.equals(e.address())) {
+						index(e);
+						break;
+					}
+				}
+			}
+		}
+		changed(entity);
+		var s = store;
+		if(s == null || entity.address() == null) return;
+		try {
+			var remaining = index.get(entity.address());
+			if(remaining == null) {
+				s.delete(entity);
+			} else {
+				s.put(remaining);
+			}
+		} catch(IOException e) {
+			LOGGER.log(SEVERE, e.toString(), e);
+		}
+	}
+	
+	private void index(Entity entity) {
+		if(entity.address() == null) return;
+		index.put(entity.address(), entity);
+		grants.put(entity.address(), entity.grants());
 	}
 
 	// update the entity database by deleting all binding to the given servie
@@ -175,11 +368,65 @@ public final class EntityManager {
 	 * @param address The service address of the service.
 	 */	
 	public final void deleted(boolean isProxy, ServiceAddress address) {
-		entities().forEach(e -> {
+		List<Entity> snapshot;
+		synchronized(this) {
+			snapshot = new ArrayList<>(entities);
+		}
+		snapshot.forEach(e -> {
 			e.deleted(isProxy, address);
+			if(grantsChanged(e)) changed(e);
+			try {
+				persist(e);
+			} catch(IOException ex) {
+				LOGGER.log(SEVERE, ex.toString(), ex);
+			}
+		});
+	}
+	
+	void store(EntityStore value) {
+		store = value;
+	}
+	
+	EntityStore store() {
+		return store;
+	}
+	
+	// journals the entity, compacting the store in the background when it has grown
+	private void persist(Entity entity) throws IOException {
+		var s = store;
+		if(s == null || entity.address() == null) return;
+		s.put(entity);
+		if(!s.needsCompaction() || !compacting.compareAndSet(false, true)) return;
+		admin.executor.submit(() -> {
+			try {
+				s.compact(() -> {
+					synchronized(EntityManager.this) {
+						return new ArrayList<>(entities);
+					}
+				});
+			} catch(IOException e) {
+				LOGGER.log(SEVERE, e.toString(), e);
+			} finally {
+				compacting.set(false);
+			}
 		});
 	}
 
+	// drops everything derived from the entity's previous state
+	private void changed(Entity entity) {
+		admin.resumption.revoke(entity.address());
+		keys.invalidate();
+	}
+	
+	// returns true if the entity's grants changed since last seen
+	private boolean grantsChanged(Entity entity) {
+		var address = entity.address();
+		if(address == null) return false;
+		var version = entity.grants();
+		var seen = grants.put(address, version);
+		return seen == null || seen != version;
+	}
+	
 	/**
 	 * Returns an optional containing the entity associated with the given address if it exists.
 	 *
@@ -188,17 +435,22 @@ public final class EntityManager {
 	 */	
 	public final Optional<Entity> entity(Address address) {
 		if(address == null) return Optional.empty();
-		return entities()
-			.stream()
-			.filter(e -> e.address() != null && address.equals(e.address()))
-			.findAny();
+		return Optional.ofNullable(index.get(address));
 	}
 
 	final Optional<Entity> authenticate(Address address, ServiceId id) 
 		throws IOException {
 			
 		// fetch entity associated with the address	
-		var optional = entity(address);
+		return granted(entity(address), id);
+	}
+	
+	// as above for an authenticated key, resolving the entity through the key cache
+	final Optional<Entity> authenticate(KeyCache.Entry key, ServiceId id) {
+		return granted(key.entity(this::entity), id);
+	}
+	
+	private static Optional<Entity> granted(Optional<Entity> optional, ServiceId id) {
 		if(optional.isPresent()) {
 			Entity entity = optional.get();
 			// check if the entity was granted access to the service
@@ -216,6 +468,11 @@ public final class EntityManager {
 		Entity entity;
 		CompletionListener<Entity> handler;
 		boolean isProxy;
+		// exchanges in progress and nano time of the last exchange
+		final AtomicInteger busy = new AtomicInteger();
+		volatile long used = System.nanoTime();
+		// set when a newer session to the same entity is registered
+		volatile boolean replaced;
 		
 		// server
 		ExchangeSession(Service service) {
@@ -240,7 +497,7 @@ public final class EntityManager {
 			} else {
 				entity = entity();
 			}
-			sessions.put(entity().address(), this);
+			register(this);
 		}
 		
 		@Override
@@ -255,14 +512,16 @@ public final class EntityManager {
 		
 		@Override
 		protected void closed(Exception e) {
-			sessions.remove(entity().address());
+			unregister(this);
 		}
 		
 		private void update(Entity entity, boolean notify) {
 			EntityManager.this.admin.executor.submit(() -> {
+				// most exchanges find nothing new to store
+				var changed = entity.importedChanged() | entity.isPending();
 				entity.setPending(false);
 				try {
-					EntityManager.this.update(entity, false);
+					if(changed) exchanged(entity);
 					if(onExchange != null) onExchange.accept(notify ? entity : null);
 				} catch(IOException e) {
 					// todo
@@ -273,14 +532,24 @@ public final class EntityManager {
 		
 		// ---- requests ----
 		void exchange(Entity entity, long timeout) throws ServiceException {
-			submit(timeout, f -> exchange(entity, f));
+			busy.incrementAndGet();
+			try {
+				submit(timeout, f -> exchange(entity, f));
+			} finally {
+				used = System.nanoTime();
+				if(busy.decrementAndGet() == 0 && replaced) close();
+			}
 		}
 		
 		private void exchange(Entity entity, CompletableFuture<Void> future) throws IOException {
+			exchange(entity, entity.exchange(), future);
+		}
+		
+		// sends the exported services - if the peer can't apply a delta it asks for a
+		// snapshot, which is sent within the same exchange
+		private void exchange(Entity entity, Entity.ExchangeData data, CompletableFuture<Void> future) throws IOException {
 			final Message request = Message.request(CLIENT_REQUEST_DATA_EXCHANGE);
 			var out = request.out();
-
-			Entity.ExchangeData data = entity.exchange();
 			out.write(data);
 
 			request(request, 
@@ -289,13 +558,21 @@ public final class EntityManager {
 					response -> {
 						try {
 							var in = response.in();
+							var applied = true;
 							if(in.readBoolean()) {
 								var d = new Entity.ExchangeData(in);
-								entity.exchange(d);
-								update(entity, true);
+								applied = entity.exchange(d);
 							} else {
-								update(entity, true);
-							}	
+								entity.acknowledged(in.readLong());
+							}
+							// exchange again in full if either side couldn't apply a delta -
+							// known() is then -1 and the peer answers with a snapshot
+							if(!applied || data.isDelta() && !entity.acknowledged(data)) {
+								LOGGER.log(FINER, "EntityManager.proxy.exchange SNAPSHOT");
+								exchange(entity, entity.snapshot(), future);
+								return;
+							}
+							update(entity, true);
 
 							future.complete(null);
 							LOGGER.log(FINER, "EntityManager.proxy.exchange SUCCESS");
@@ -312,21 +589,37 @@ public final class EntityManager {
 		}		
 		
 		// ---- responses ----
+		// in use while answering, if replaced meanwhile the sweep closes it once the
+		// response has been sent
 		Message exchange(Message request) throws IOException {
+			busy.incrementAndGet();
+			try {
+				return respond(request);
+			} finally {
+				used = System.nanoTime();
+				busy.decrementAndGet();
+			}
+		}
+		
+		private Message respond(Message request) throws IOException {
 			var entity = entity();
 			var in = request.in();
 
 			var d = new Entity.ExchangeData(in);
-			entity.exchange(d);
+			// if the delta can't be applied known() is -1, asking for a snapshot
+			if(!entity.exchange(d)) LOGGER.log(FINER, "EntityManager.exchange base mismatch");
 			
 			var response = request.respond(SERVICE_RESPONSE_DATA_EXCHANGE);
 			var out = response.out();
-			if(entity.isPending()) {
+			// sent when changed, or in full when the requester holds none of them
+			if(entity.isPending() || d.known() < 0) {
 				out.writeBoolean(true);
 				var data = entity.exchange();
 				out.write(data);
 			} else {
+				// the version of the requester's services held, for its next delta
 				out.writeBoolean(false);
+				out.writeLong(entity.known());
 			}
 			update(entity, true);
 			
@@ -338,6 +631,8 @@ public final class EntityManager {
 				
 	class ExchangeService extends AbstractService {
 		ServiceAdmin admin;
+		// notified by its sessions of each exchange answered, before responding
+		CompletionListener<Entity> handler;
 			
 		ExchangeService(ServiceAddress address) {
 			super(address, 1, Scope.RESTRICTED, "", "", new Descriptor.Description());
@@ -345,7 +640,9 @@ public final class EntityManager {
 			
 		@Override
 		public Session newSession() {
-			return new ExchangeSession(this);
+			var session = new ExchangeSession(this);
+			session.handler = handler;
+			return session;
 		}
 	}
 }
@@ -0,0 +1,325 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+import rs.igram.kiribi.io.VarInputStream;
+import rs.igram.kiribi.net.Address;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.logging.Level.*;
+
+/**
+ * Stores the entities of an entity manager in a directory, as a snapshot of 
+ * all entities and a journal of the changes made since. Each change appends
+ * one record to the journal, the snapshot is rewritten from the entity manager
+ * once the journal outgrows it. Both are read in buffered chunks when loading,
+ * so neither is limited by the size of a buffer.
+ *
+ * <p>Records carry a checksum, a partially written record at the end of the
+ * journal is discarded when loading. Unless the store syncs each write, changes 
+ * made shortly before a crash may be lost.</p>
+ *
+ * <p>Each compaction starts a new generation of the journal. The snapshot records
+ * the generation it was written for, a journal of an earlier generation, left 
+ * behind by a crash during compaction, is already covered by the snapshot and 
+ * is discarded when loading.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class EntityStore implements Closeable {
+	static final Logger LOGGER = Logger.getLogger(EntityStore.class.getName());
+	
+	private static final int MAGIC = 0x4b454e54;
+	private static final int JOURNAL_MAGIC = 0x4b454a4e;
+	private static final int FORMAT = 2;
+	// magic, format and generation
+	private static final int JOURNAL_HEADER = 16;
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	// op, length and checksum
+	private static final int RECORD_HEADER = 9;
+	private static final int READ_BUFFER = 1 << 16;
+	// the journal is compacted once larger than both this and the snapshot
+	static final long MIN_COMPACT_SIZE = 1 << 20;
+	
+	private final Path directory;
+	private final Path snapshot;
+	private final Path journal;
+	private final boolean sync;
+	private FileChannel channel;
+	private long snapshotSize;
+	// the generation of the journal, the snapshot covers all earlier ones
+	private long generation;
+	
+	/**
+	 * Initializes a newly created <code>EntityStore</code> object
+	 * storing entities in the given directory.
+	 *
+	 * @param directory The directory to store entities in, created if it doesn't exist.
+	 * @throws IOException if the directory could not be created.
+	 */
+	public EntityStore(Path directory) throws IOException {
+		this(directory, false);
+	}
+	
+	/**
+	 * Initializes a newly created <code>EntityStore</code> object
+	 * storing entities in the given directory.
+	 *
+	 * @param directory The directory to store entities in, created if it doesn't exist.
+	 * @param sync <code>true</code> to force each change to the storage device
+	 * before returning.
+	 * @throws IOException if the directory could not be created.
+	 */
+	public EntityStore(Path directory, boolean sync) throws IOException {
+		Files.createDirectories(directory);
+		this.directory = directory;
+		snapshot = directory.resolve("entities.snapshot");
+		journal = directory.resolve("entities.journal");
+		this.sync = sync;
+	}
+	
+	/**
+	 * Loads the stored entities, in the order they were first stored.
+	 *
+	 * @return The stored entities.
+	 * @throws IOException if there was a problem reading the store.
+	 */
+	public synchronized List<Entity> load() throws IOException {
+		var entities = new LinkedHashMap<Address, Entity>();
+		generation = 0;
+		if(Files.exists(snapshot)) {
+			try(var c = FileChannel.open(snapshot, READ)) {
+				snapshotSize = c.size();
+				generation = readSnapshot(input(c), entities);
+			}
+		}
+		if(channel == null) channel = FileChannel.open(journal, CREATE, READ, WRITE);
+		var size = channel.size();
+		if(size < JOURNAL_HEADER) {
+			// new, or created by a compaction which didn't get to write the header
+			startJournal();
+			return new ArrayList<>(entities.values());
+		}
+		channel.position(0);
+		var in = input(channel);
+		if(in.readInt() != JOURNAL_MAGIC) throw new IOException("Not an entity journal: "+journal);
+		if(in.readInt() != FORMAT) throw new IOException("Unsupported journal format: "+journal);
+		var g = in.readLong();
+		if(g < generation) {
+			LOGGER.log(INFO, "Discarding {0}, covered by the snapshot", journal);
+			startJournal();
+			return new ArrayList<>(entities.values());
+		}
+		if(g > generation) throw new IOException("Snapshot older than the journal: "+snapshot);
+		var valid = replay(in, size, entities);
+		if(valid < size) {
+			LOGGER.log(WARNING, "Discarding {0} bytes at the end of {1}", new Object[]{size - valid, journal});
+			channel.truncate(valid);
+		}
+		channel.position(valid);
+		return new ArrayList<>(entities.values());
+	}
+	
+	// reads from the channel's position on, the channel is left open
+	private static DataInputStream input(FileChannel c) {
+		return new DataInputStream(new BufferedInputStream(Channels.newInputStream(c), READ_BUFFER));
+	}
+	
+	// returns the generation of the journal the snapshot was written for
+	private long readSnapshot(DataInputStream in, LinkedHashMap<Address, Entity> entities) throws IOException {
+		try {
+			if(in.readInt() != MAGIC) throw new IOException("Not an entity snapshot: "+snapshot);
+			if(in.readInt() != FORMAT) throw new IOException("Unsupported snapshot format: "+snapshot);
+			var generation = in.readLong();
+			var count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				var length = in.readInt();
+				if(length < 0 || length > snapshotSize) throw new IOException("Corrupt snapshot: "+snapshot);
+				var bytes = new byte[length];
+				in.readFully(bytes);
+				var entity = new Entity(bytes);
+				entities.put(entity.address(), entity);
+			}
+			return generation;
+		} catch(EOFException e) {
+			throw new IOException("Truncated snapshot: "+snapshot, e);
+		}
+	}
+	
+	// applies the journal records following the header, returns the end of the 
+	// last valid record
+	private long replay(DataInputStream in, long size, LinkedHashMap<Address, Entity> entities) throws IOException {
+		var crc = new CRC32C();
+		var position = (long)JOURNAL_HEADER;
+		while(size - position >= RECORD_HEADER) {
+			var op = in.readByte();
+			var length = in.readInt();
+			var checksum = in.readInt();
+			if(length < 0 || length > size - position - RECORD_HEADER) return position;
+			var bytes = new byte[length];
+			in.readFully(bytes);
+			crc.reset();
+			crc.update(bytes);
+			if((int)crc.getValue() != checksum) return position;
+			if(op == PUT) {
+				var entity = new Entity(bytes);
+				entities.put(entity.address(), entity);
+			} else if(op == DELETE) {
+				entities.remove(new Address(new VarInputStream(bytes)));
+			} else {
+				return position;
+			}
+			position += RECORD_HEADER + length;
+		}
+		return position;
+	}
+	
+	// empties the journal and writes the header of the current generation
+	private void startJournal() throws IOException {
+		channel.truncate(0);
+		var b = ByteBuffer.allocate(JOURNAL_HEADER);
+		b.putInt(JOURNAL_MAGIC).putInt(FORMAT).putLong(generation).flip();
+		channel.position(0);
+		while(b.hasRemaining()) channel.write(b);
+		channel.force(true);
+	}
+	
+	synchronized void put(Entity entity) throws IOException {
+		append(PUT, entity.encode());
+	}
+	
+	synchronized void delete(Entity entity) throws IOException {
+		append(DELETE, entity.address().encode());
+	}
+	
+	private void append(byte op, byte[] bytes) throws IOException {
+		if(channel == null) throw new IOException("Entity store not open");
+		var crc = new CRC32C();
+		crc.update(bytes);
+		var b = ByteBuffer.allocate(RECORD_HEADER + bytes.length);
+		b.put(op).putInt(bytes.length).putInt((int)crc.getValue()).put(bytes).flip();
+		while(b.hasRemaining()) channel.write(b);
+		if(sync) channel.force(false);
+	}
+	
+	synchronized boolean needsCompaction() throws IOException {
+		return channel != null && channel.size() - JOURNAL_HEADER > Math.max(MIN_COMPACT_SIZE, snapshotSize);
+	}
+	
+	/**
+	 * Rewrites the snapshot from the given entities and empties the journal. The 
+	 * entities are obtained while holding the lock of this store, so no change can 
+	 * be journaled in between.
+	 *
+	 * @param entities Supplies the entities to store.
+	 * @throws IOException if there was a problem writing the snapshot.
+	 */
+	synchronized void compact(Supplier<Collection<Entity>> entities) throws IOException {
+		if(channel == null) throw new IOException("Entity store not open");
+		var stored = new ArrayList<Entity>();
+		for(var e : entities.get()) {
+			if(e.address() != null) stored.add(e);
+		}
+		var tmp = snapshot.resolveSibling(snapshot.getFileName()+".tmp");
+		try(var c = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING);
+			var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c), 1 << 16))) {
+			
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeLong(generation + 1);
+			out.writeInt(stored.size());
+			for(var e : stored) {
+				var bytes = e.encode();
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.flush();
+			c.force(true);
+		}
+		Files.move(tmp, snapshot, ATOMIC_MOVE, REPLACE_EXISTING);
+		syncDirectory();
+		snapshotSize = Files.size(snapshot);
+		// from here the journal is covered by the snapshot, even if not yet emptied
+		generation++;
+		try {
+			startJournal();
+		} catch(IOException e) {
+			// records appended after the old ones would be discarded when loading
+			channel.close();
+			channel = null;
+			throw e;
+		}
+	}
+	
+	// makes the rename of the snapshot durable
+	private void syncDirectory() throws IOException {
+		try(var c = FileChannel.open(directory, READ)) {
+			c.force(true);
+		} catch(IOException e) {
+			// directories can't be opened on some platforms, the rename is then as 
+			// durable as the platform makes it
+			LOGGER.log(FINE, "Could not sync {0}: {1}", new Object[]{directory, e});
+		}
+	}
+	
+	/**
+	 * Closes this store.
+	 *
+	 * @throws IOException if there was a problem closing the journal.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(channel == null) return;
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+			channel = null;
+		}
+	}
+}
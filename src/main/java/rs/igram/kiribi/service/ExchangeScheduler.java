@@ -0,0 +1,218 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import rs.igram.kiribi.service.util.TimerWheel;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Debounces exchanges. Items scheduled within a window are exchanged together 
+ * as a batch, an item scheduled repeatedly being exchanged once, with a bounded
+ * number of exchanges in progress. The listener is notified once per batch.
+ *
+ * @author Michael Sargent
+ */
+final class ExchangeScheduler<T> {
+	private final TimerWheel timer;
+	private final Executor executor;
+	private final Function<T, ?> key;
+	private final Exchange<T> exchange;
+	// scheduled items by key, and the keys of items being exchanged
+	private final Map<Object, T> dirty = new ConcurrentHashMap<>();
+	private final Set<Object> running = ConcurrentHashMap.newKeySet();
+	private final AtomicBoolean armed = new AtomicBoolean();
+	// exchanges waiting to run, and the number running - each one completing
+	// submits the next so no thread waits for a place
+	private final Queue<Job> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger active = new AtomicInteger();
+	private volatile long window;
+	private volatile int parallelism;
+	private volatile BiConsumer<List<T>, List<T>> listener;
+	
+	ExchangeScheduler(TimerWheel timer, Executor executor, Function<T, ?> key, 
+		Exchange<T> exchange, long window, TimeUnit unit, int parallelism) {
+		
+		this.timer = timer;
+		this.executor = executor;
+		this.key = key;
+		this.exchange = exchange;
+		configure(window, unit, parallelism);
+	}
+	
+	void configure(long window, TimeUnit unit, int parallelism) {
+		this.window = unit.toMillis(window);
+		this.parallelism = parallelism;
+		// a higher parallelism admits waiting exchanges
+		drain();
+	}
+	
+	// notified with the items exchanged and the items which failed
+	void setListener(BiConsumer<List<T>, List<T>> value) {
+		listener = value;
+	}
+	
+	void schedule(T item) {
+		dirty.put(key.apply(item), item);
+		arm();
+	}
+	
+	private void arm() {
+		if(!armed.compareAndSet(false, true)) return;
+		try {
+			timer.schedule(new Flush(), window, MILLISECONDS);
+		} catch(IllegalStateException e) {
+			// shut down
+		}
+	}
+	
+	private void flush() {
+		// disarm first so items scheduled from now on start the next batch
+		armed.set(false);
+		var batch = new ArrayList<T>();
+		for(var k : dirty.keySet()) {
+			// items being exchanged are picked up when the exchange completes
+			if(!running.add(k)) continue;
+			var item = dirty.remove(k);
+			if(item == null) {
+				running.remove(k);
+			} else {
+				batch.add(item);
+			}
+		}
+		if(batch.isEmpty()) return;
+		
+		var b = new Batch(batch.size());
+		for(var item : batch) queue.add(new Job(item, b));
+		drain();
+	}
+	
+	// runs waiting exchanges while fewer than the parallelism are running
+	private void drain() {
+		while(true) {
+			var a = active.get();
+			if(a >= parallelism || queue.isEmpty()) return;
+			if(!active.compareAndSet(a, a + 1)) continue;
+			var job = queue.poll();
+			if(job == null) {
+				active.decrementAndGet();
+				continue;
+			}
+			try {
+				executor.execute(() -> {
+					try {
+						job.run();
+					} finally {
+						active.decrementAndGet();
+						drain();
+					}
+				});
+			} catch(RuntimeException e) {
+				// rejected
+				active.decrementAndGet();
+				job.completed(false);
+			}
+		}
+	}
+	
+	private final class Job {
+		final T item;
+		final Batch batch;
+		
+		Job(T item, Batch batch) {
+			this.item = item;
+			this.batch = batch;
+		}
+		
+		void run() {
+			var ok = false;
+			try {
+				exchange.exchange(item);
+				ok = true;
+			} catch(Exception e) {
+				// reported with the batch
+			} finally {
+				completed(ok);
+			}
+		}
+		
+		void completed(boolean ok) {
+			var k = key.apply(item);
+			running.remove(k);
+			if(dirty.containsKey(k)) arm();
+			batch.completed(item, ok);
+		}
+	}
+	
+	private final class Batch {
+		final AtomicInteger remaining;
+		final List<T> exchanged = Collections.synchronizedList(new ArrayList<T>());
+		final List<T> failed = Collections.synchronizedList(new ArrayList<T>());
+		
+		Batch(int size) {
+			remaining = new AtomicInteger(size);
+		}
+		
+		void completed(T item, boolean ok) {
+			(ok ? exchanged : failed).add(item);
+			if(remaining.decrementAndGet() == 0) {
+				var l = listener;
+				if(l != null) l.accept(exchanged, failed);
+			}
+		}
+	}
+	
+	private final class Flush extends TimerWheel.Timeout {
+		@Override
+		protected void expired() {
+			// hand off the wheel thread
+			try {
+				executor.execute(ExchangeScheduler.this::flush);
+			} catch(RuntimeException e) {
+				armed.set(false);
+			}
+		}
+	}
+	
+	@FunctionalInterface
+	interface Exchange<T> {
+		void exchange(T item) throws Exception;
+	}
+}
@@ -0,0 +1,123 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import rs.igram.kiribi.net.Address;
+
+/**
+ * A bounded cache of the addresses derived from the public keys presented 
+ * during authentication, and of the entities those addresses resolve to.
+ * Resolved entities are dropped whenever the entity manager changes.
+ *
+ * @author Michael Sargent
+ */
+final class KeyCache {
+	private final Map<Key, Entry> entries;
+	private final AtomicInteger generation = new AtomicInteger();
+	
+	KeyCache(int capacity) {
+		entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, KeyCache.Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+	
+	// returns the entry for the key, deriving its address if it isn't cached
+	Entry get(PublicKey key) throws IOException {
+		var k = new Key(key.getEncoded());
+		synchronized(entries) {
+			var e = entries.get(k);
+			if(e != null) return e;
+		}
+		var e = new Entry(new Address(key));
+		synchronized(entries) {
+			var old = entries.putIfAbsent(k, e);
+			return old == null ? e : old;
+		}
+	}
+	
+	// called when the entities change
+	void invalidate() {
+		generation.incrementAndGet();
+	}
+	
+	int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+	
+	final class Entry {
+		final Address address;
+		private Optional<Entity> entity;
+		private int resolved;
+		
+		private Entry(Address address) {
+			this.address = address;
+		}
+		
+		// returns the cached entity if no change happened since it was resolved
+		synchronized Optional<Entity> entity(Function<Address, Optional<Entity>> lookup) {
+			// read before the lookup so a concurrent change forces another one
+			var g = generation.get();
+			if(entity == null || resolved != g) {
+				entity = lookup.apply(address);
+				resolved = g;
+			}
+			return entity;
+		}
+	}
+	
+	private static final class Key {
+		private final byte[] b;
+		private final int hash;
+		
+		Key(byte[] b) {
+			this.b = b;
+			hash = Arrays.hashCode(b);
+		}
+		
+		@Override
+		public int hashCode() {return hash;}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(o == null || o.getClass() != Key.class) return false;
+			return Arrays.equals(b, ((Key)o).b);
+		}
+	}
+}
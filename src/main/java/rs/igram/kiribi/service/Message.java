@@ -25,16 +25,28 @@
 package rs.igram.kiribi.service;
 
 import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import rs.igram.kiribi.io.Encodable;
 import rs.igram.kiribi.io.VarInput;
 import rs.igram.kiribi.io.VarInputStream;
 import rs.igram.kiribi.io.VarOutput;
 import rs.igram.kiribi.io.VarOutputStream;
+import rs.igram.kiribi.service.util.BufferPool;
+import rs.igram.kiribi.service.util.PooledBuffer;
 
 /**
  * An instance of this class represents a data message between peers.
  *
+ * <p>The payload of a message is held in a pooled buffer. The payload of a received 
+ * message is only valid until the request handler or response listener processing it
+ * returns, or until it is turned into a response. The payload of a sent message is
+ * released once it has been written, so a message is sent once unless it is
+ * {@link #retain() retained} for each further send. Sending a released message fails
+ * with an <code>IllegalStateException</code>.</p>
+ *
  * @author Michael Sargent
  */
 public final class Message implements Encodable {
@@ -44,21 +56,45 @@ public final class Message implements Encodable {
 	public static final byte ERROR		= 1;
 	private static final byte REQUEST	= 0;
 	private static final byte RESPONSE	= 1;
+	private static final byte CHUNK		= 2;
+	private static final byte DEMAND	= 3;
+	private static final byte OPEN		= 4;
+	private static final byte CLOSE		= 5;
+	// the largest payload a message may carry, or a compressed one inflate to -
+	// checked before a received payload is allocated
+	static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+	// deflate cannot compress by more than this
+	private static final int MAX_RATIO = 1032;
+	// flags a compressed payload in the type byte
+	private static final int COMPRESSED	= 0x80;
+	// flags a request which expects no response, it holds no credit of the sender
+	// and isn't counted against the receiver's window
+	private static final int ONEWAY		= 0x40;
 	
 	private byte type;
 	private byte status;
 	private byte code;
-	/** The uid of the message. */	
-	public final long uid;
+	// stamped by the transponder when a request is sent, responses keep the uid
+	// of their request
+	private long uid;
+	// the channel of the session on a multiplexed connection, 0 otherwise
+	private int channel;
+	private boolean compressed;
+	private boolean oneway;
+	
+	private static final int INITIAL_CAPACITY = 256;
 	
+	// inbound or outbound payload, streams are created on demand
+	private PooledBuffer payload;
 	private VarInputStream in;
-	private VarOutputStream out = new VarOutputStream();
+	private VarOutputStream out;
+	// set once the last hold on the payload is released
+	private volatile boolean released;
 	
 	private Message(byte code){
 		this.code = code;
 		type = REQUEST;
 		status = OK;
-		uid = ServiceAdmin.random();
 	}
 	
 	/**
@@ -69,12 +105,23 @@ public final class Message implements Encodable {
 	 * @throws IOException if there was a probem reading from the input stream.
 	 */
 	public Message(VarInput in) throws IOException {
-		type = in.readByte();
-		uid = in.readLong();
+		var t = in.readByte();
+		type = (byte)(t & ~(COMPRESSED | ONEWAY));
+		compressed = (t & COMPRESSED) != 0;
+		oneway = (t & ONEWAY) != 0;
+		uid = readVarLong(in);
+		var c = readVarLong(in);
+		if(c < 0 || c > Integer.MAX_VALUE) throw new IOException("Invalid channel: "+c);
+		channel = (int)c;
 		status = in.readByte();
 		code = in.readByte();
-		var b = in.readBytes();
-		this.in = new VarInputStream(b);
+		var length = in.readInt();
+		// the length is the peer's claim, check it before allocating
+		if(length < 0 || length > MAX_PAYLOAD_SIZE) throw new IOException("Invalid payload length: "+length);
+		payload = BufferPool.acquire(length);
+		var b = payload.buffer();
+		in.readFully(b.array(), b.arrayOffset(), length);
+		b.limit(length);
 	}
 
 	/**
@@ -86,6 +133,61 @@ public final class Message implements Encodable {
 	 */
 	public static Message request(byte code) {return new Message(code);}
 	
+	// a chunk of the streamed response to the request with the given uid
+	static Message chunk(long uid, byte code) {
+		var chunk = new Message(code);
+		chunk.type = CHUNK;
+		chunk.uid = uid;
+		return chunk;
+	}
+	
+	// opens a channel to the service with the given id
+	static Message open(int channel, ServiceId id) {
+		var open = new Message((byte)0);
+		open.type = OPEN;
+		open.channel = channel;
+		try{
+			id.write(open.out());
+		}catch(IOException e){}
+		return open;
+	}
+	
+	// closes a channel
+	static Message close(int channel) {
+		var close = new Message((byte)0);
+		close.type = CLOSE;
+		close.channel = channel;
+		return close;
+	}
+	
+	// asks the responder to the request with the given uid for n more chunks, 
+	// or to stop streaming if n is 0
+	static Message demand(long uid, long n) {
+		var demand = new Message((byte)0);
+		demand.type = DEMAND;
+		demand.uid = uid;
+		try{
+			demand.out().writeLong(n);
+		}catch(IOException e){}
+		return demand;
+	}
+	
+	/**
+	 * Returns the uid of the message. The uid of a request is assigned when it is sent
+	 * and is unique for the connection it is sent on, responses have the uid of their
+	 * request.
+	 *
+	 * @return The uid of the message.
+	 */
+	public long uid() {return uid;}
+	
+	// called by the transponder
+	void uid(long value) {uid = value;}
+	
+	int channel() {return channel;}
+	
+	void channel(int value) {channel = value;}
+	
 	byte type() {return type;}
 	
 	byte status() {return status;}
@@ -102,14 +204,27 @@ public final class Message implements Encodable {
 	 *
 	 * @return A <code>VarInput</code> to read data from the message.
 	 */
-	public VarInput in() {return in;}
+	public VarInput in() {
+		if(released) throw new IllegalStateException("Message released");
+		if(in == null && payload != null && out == null) {
+			in = new VarInputStream(payload.inputStream());
+		}
+		return in;
+	}
 		
 	/**
 	 * Returns a <code>VarOutput</code> to write data to the message.
 	 *
 	 * @return A <code>VarOutput</code> to write data to the message.
 	 */
-	public VarOutput out() {return out;}
+	public VarOutput out() {
+		if(released) throw new IllegalStateException("Message released");
+		if(out == null) {
+			if(payload == null) payload = BufferPool.acquire(INITIAL_CAPACITY);
+			out = new VarOutputStream(payload.outputStream());
+		}
+		return out;
+	}
 
 	/**
 	 * Generates a new response <code>Message</code> object
@@ -121,7 +236,8 @@ public final class Message implements Encodable {
 	public Message respond(byte code) {
 		this.code = code;
 		type = RESPONSE;
-		in = null;
+		oneway = false;
+		drop();
 		return this;
 	}
 	
@@ -136,24 +252,171 @@ public final class Message implements Encodable {
 		code = 0;
 		type = RESPONSE;
 		status = ERROR;
+		oneway = false;
+		drop();
 		try{
-			out.writeUTF(msg);
+			out().writeUTF(msg);
 		}catch(IOException e){}
-		in = null;
 		return this;
 	}
 	
+	/**
+	 * Holds the payload of this message for one more send. A sent message releases 
+	 * its payload once written, so a message sent more than once must be retained 
+	 * before each further send.
+	 *
+	 * @return This message.
+	 * @throws IllegalStateException if the message was already released.
+	 */
+	public Message retain() {
+		if(released) throw new IllegalStateException("Message released");
+		// an empty message gets a payload to count its holds
+		if(payload == null) out();
+		payload.retain();
+		return this;
+	}
+	
+	// drops one hold on the payload, returning it to the pool with the last one
+	void release() {
+		var p = payload;
+		// still held for another send
+		if(p != null && !p.release()) return;
+		payload = null;
+		in = null;
+		out = null;
+		compressed = false;
+		released = true;
+	}
+	
+	boolean isReleased() {return released;}
+	
+	// the length of the outbound payload
+	int length() throws IOException {
+		if(out == null) return 0;
+		out.flush();
+		return payload.buffer().position();
+	}
+	
+	// drops the payload so the message can be reused as a response
+	private void drop() {
+		if(payload != null) payload.release();
+		payload = null;
+		in = null;
+		out = null;
+		compressed = false;
+	}
+	
+	boolean isCompressed() {return compressed;}
+	
+	boolean oneway() {return oneway;}
+	
+	void oneway(boolean value) {oneway = value;}
+	
+	// compresses the outbound payload if it is at least threshold bytes long and 
+	// compression makes it smaller - the compressed payload is prefixed with its
+	// uncompressed length
+	void compress(Deflater deflater, int threshold) throws IOException {
+		// a retained payload is written again as is, it is shared by its holds
+		if(out == null || compressed || payload.isShared()) return;
+		out.flush();
+		var src = payload.buffer();
+		var length = src.position();
+		// the length prefix alone fills payloads of up to 4 bytes
+		if(length < threshold || length <= 4) return;
+		var target = BufferPool.acquire(length);
+		var dst = target.buffer();
+		dst.limit(length);
+		dst.putInt(length);
+		deflater.reset();
+		deflater.setInput(src.array(), src.arrayOffset(), length);
+		deflater.finish();
+		while(!deflater.finished() && dst.hasRemaining()) {
+			var n = deflater.deflate(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			dst.position(dst.position() + n);
+		}
+		if(!deflater.finished()) {
+			// incompressible
+			target.release();
+			return;
+		}
+		payload.release();
+		payload = target;
+		out = null;
+		compressed = true;
+	}
+	
+	// restores the payload of a received compressed message
+	void inflate(Inflater inflater) throws IOException {
+		var src = payload.buffer();
+		if(src.remaining() < 4) throw new IOException("Invalid compressed payload");
+		var length = src.getInt();
+		// the length is the peer's claim, check it before allocating
+		if(length < 0 || length > MAX_PAYLOAD_SIZE || length > (long)src.remaining() * MAX_RATIO) {
+			throw new IOException("Invalid payload length: "+length);
+		}
+		var target = BufferPool.acquire(length);
+		var dst = target.buffer();
+		inflater.reset();
+		inflater.setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+		try {
+			while(dst.position() < length && !inflater.finished()) {
+				var n = inflater.inflate(dst.array(), dst.arrayOffset() + dst.position(), length - dst.position());
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				dst.position(dst.position() + n);
+			}
+		} catch(DataFormatException e) {
+			target.release();
+			throw new IOException(e);
+		}
+		if(dst.position() != length) {
+			target.release();
+			throw new IOException("Invalid compressed payload");
+		}
+		dst.flip();
+		payload.release();
+		payload = target;
+		in = null;
+		compressed = false;
+	}
+	
 	@Override
 	public void write(VarOutput out) throws IOException {
-		out.writeByte(type);
-		out.writeLong(uid);
+		out.writeByte(type | (compressed ? COMPRESSED : 0) | (oneway ? ONEWAY : 0));
+		writeVarLong(out, uid);
+		writeVarLong(out, channel);
 		out.writeByte(status);
 		out.writeByte(code);
-		var b = this.out.toByteArray();
-		out.writeBytes(b);
-		out = null;
+		if(this.out == null && !compressed) {
+			out.writeInt(0);
+		} else {
+			// write straight from the payload buffer
+			if(this.out != null) this.out.flush();
+			var b = payload.buffer();
+			out.writeInt(b.position());
+			out.write(b.array(), b.arrayOffset(), b.position());
+		}
 	}
 
+	// uids and channels are small and positive, so written as unsigned varints - 
+	// mostly one or two bytes
+	private static void writeVarLong(VarOutput out, long value) throws IOException {
+		while((value & ~0x7fl) != 0) {
+			out.writeByte((int)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+	
+	private static long readVarLong(VarInput in) throws IOException {
+		var value = 0l;
+		for(int shift = 0; shift < 64; shift += 7) {
+			var b = in.readByte();
+			value |= (long)(b & 0x7f) << shift;
+			if((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+	
 	@Override
 	public String toString() {return "Message:"+type+" "+code;}
 }
@@ -0,0 +1,81 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.io.VarInput;
+import rs.igram.kiribi.io.VarOutput;
+
+/**
+ * An instance of this class represents the messages sent in a single endpoint write.
+ *
+ * @author Michael Sargent
+ */
+final class MessageBatch implements Encodable {
+	// the largest batch a writer may send, and so a reader will accept
+	static final int MAX_SIZE = 1024;
+	
+	private final Message[] messages;
+	private int size;
+	
+	// outbound - reused by the transponder's writer
+	MessageBatch(int capacity) {
+		messages = new Message[capacity];
+	}
+	
+	// inbound
+	MessageBatch(VarInput in) throws IOException {
+		size = in.readInt();
+		// checked before the size is trusted with an allocation
+		if(size < 1 || size > MAX_SIZE) throw new IOException("Invalid batch size: "+size);
+		messages = new Message[size];
+		for(int i = 0; i < size; i++) messages[i] = new Message(in);
+	}
+	
+	int size() {return size;}
+	
+	boolean isFull() {return size == messages.length;}
+	
+	Message get(int i) {return messages[i];}
+	
+	void add(Message msg) {messages[size++] = msg;}
+	
+	// releases the messages once written
+	void clear() {
+		for(int i = 0; i < size; i++) {
+			messages[i].release();
+			messages[i] = null;
+		}
+		size = 0;
+	}
+	
+	@Override
+	public void write(VarOutput out) throws IOException {
+		out.writeInt(size);
+		for(int i = 0; i < size; i++) messages[i].write(out);
+	}
+}
@@ -0,0 +1,172 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import rs.igram.kiribi.service.util.ConcurrentLongMap;
+
+/**
+ * Dispatches incoming requests of a session to the executor, processing
+ * up to a fixed number of them concurrently. Requests beyond the limit wait
+ * in arrival order, the reader thread is never blocked.
+ *
+ * @author Michael Sargent
+ */
+final class RequestDispatcher {
+	// marks a request whose handler produced no response
+	private static final Object NONE = new Object();
+	
+	private final Transponder transponder;
+	private final Semaphore permits;
+	private final Sequencer[] sequencers;
+	// requests waiting for a permit - bounded by the window for those holding
+	// a credit of the requester
+	private final Queue<Dispatch> waiting = new ConcurrentLinkedQueue<>();
+	
+	RequestDispatcher(Transponder transponder, int concurrency, boolean ordered) {
+		this.transponder = transponder;
+		permits = new Semaphore(concurrency);
+		sequencers = ordered ? new Sequencer[256] : null;
+	}
+	
+	// called by the reader thread - queues the request while the session is at
+	// its limit
+	void dispatch(Message request) {
+		var sequencer = sequencers == null ? null : sequencer(request.code());
+		var seq = sequencer == null ? 0 : sequencer.next++;
+		var d = new Dispatch(request, sequencer, seq);
+		if(waiting.isEmpty() && permits.tryAcquire()) {
+			start(d);
+		} else {
+			waiting.add(d);
+			// a permit may have been released before the request was queued
+			drain();
+		}
+	}
+	
+	// starts waiting requests for as long as there are permits - requests start
+	// in arrival order, so a buffered response never waits for one still queued
+	private void drain() {
+		while(!waiting.isEmpty() && permits.tryAcquire()) {
+			var d = waiting.poll();
+			if(d == null) {
+				permits.release();
+				return;
+			}
+			start(d);
+		}
+	}
+	
+	private void start(Dispatch d) {
+		try {
+			transponder.submit(d);
+		} catch(RuntimeException e) {
+			// closing - the request is dropped, but its permit and its place in 
+			// the sequence are given back
+			d.request.release();
+			d.finish(null);
+		}
+	}
+	
+	private final class Dispatch implements Runnable {
+		final Message request;
+		final Sequencer sequencer;
+		final long seq;
+		final boolean counted;
+		
+		Dispatch(Message request, Sequencer sequencer, long seq) {
+			this.request = request;
+			this.sequencer = sequencer;
+			this.seq = seq;
+			counted = !request.oneway();
+		}
+		
+		@Override
+		public void run() {
+			Message response = null;
+			try {
+				response = transponder.isOpen() ? transponder.respond(request) : null;
+				if(response != request) request.release();
+			} finally {
+				finish(response);
+			}
+		}
+		
+		void finish(Message response) {
+			var released = 1;
+			try {
+				if(sequencer == null) {
+					if(response != null) transponder.write(response);
+				} else {
+					// completed whatever happened, or later requests with the same
+					// code would never be written
+					released = sequencer.complete(seq, response);
+				}
+			} catch(IOException e) {
+				transponder.failed(e);
+			} finally {
+				transponder.completed(counted);
+				permits.release(released);
+				drain();
+			}
+		}
+	}
+	
+	private Sequencer sequencer(byte code) {
+		var i = code & 0xff;
+		var s = sequencers[i];
+		if(s == null) {
+			s = new Sequencer();
+			sequencers[i] = s;
+		}
+		return s;
+	}
+	
+	// writes the responses to requests with the same code in arrival order, 
+	// a buffered response keeps its permit until it is written
+	private final class Sequencer {
+		private final ConcurrentLongMap<Object> completed = new ConcurrentLongMap<>();
+		// assigned by the reader thread
+		long next;
+		private long written;
+		
+		// returns the number of requests completed
+		synchronized int complete(long seq, Message response) throws IOException {
+			completed.put(seq, response == null ? NONE : response);
+			var n = 0;
+			Object o;
+			while((o = completed.remove(written)) != null) {
+				written++;
+				n++;
+				if(o != NONE) transponder.write((Message)o);
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * An instance of this class represents the response stream of a request handled 
+ * by a {@link StreamHandler}. Chunks are only sent as fast as the requester asks 
+ * for them - {@link #send(Message)} blocks until the requester has demand.
+ *
+ * @author Michael Sargent
+ */
+public final class ResponseStream {
+	private final Transponder transponder;
+	private final Message request;
+	// chunks the requester has asked for but not yet been sent
+	private long demand;
+	private boolean cancelled;
+	
+	ResponseStream(Transponder transponder, Message request) {
+		this.transponder = transponder;
+		this.request = request;
+	}
+	
+	/**
+	 * Returns a new chunk with the given code to write data to and send.
+	 *
+	 * @param code The code of the chunk.
+	 * @return A new chunk.
+	 */
+	public Message chunk(byte code) {
+		return Message.chunk(request.uid(), code);
+	}
+	
+	/**
+	 * Sends a chunk, blocking until the requester has asked for it.
+	 *
+	 * @param chunk The chunk to send.
+	 * @throws IOException if the stream was cancelled or there was a problem sending.
+	 */
+	public void send(Message chunk) throws IOException {
+		synchronized(this) {
+			try {
+				while(demand == 0 && !cancelled) wait();
+			} catch(InterruptedException e) {
+				chunk.release();
+				throw new InterruptedIOException("Interrupted waiting for demand");
+			}
+			if(cancelled) {
+				chunk.release();
+				throw new IOException("Stream cancelled");
+			}
+			demand--;
+		}
+		transponder.write(chunk);
+	}
+	
+	/**
+	 * Returns <code>true</code> if the requester cancelled this stream, <code>false</code> otherwise.
+	 *
+	 * @return <code>true</code> if the requester cancelled this stream, <code>false</code> otherwise.
+	 */
+	public synchronized boolean isCancelled() {return cancelled;}
+	
+	// called by the transponder when the requester asks for more chunks
+	synchronized void demand(long n) {
+		demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+		notifyAll();
+	}
+	
+	// called by the transponder when the requester cancels or the connection closes
+	synchronized void cancel() {
+		cancelled = true;
+		notifyAll();
+	}
+}
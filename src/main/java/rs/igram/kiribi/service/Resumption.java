@@ -0,0 +1,353 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import rs.igram.kiribi.io.EncodedStream;
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.io.VarInput;
+import rs.igram.kiribi.io.VarInputStream;
+import rs.igram.kiribi.io.VarOutput;
+import rs.igram.kiribi.io.VarOutputStream;
+import rs.igram.kiribi.net.Address;
+
+/**
+ * Session resumption tickets. After authenticating a peer the server issues a
+ * ticket, MACed with a key only it knows, along with a secret derived from the
+ * ticket. A peer reconnecting within the ticket's lifetime presents the ticket 
+ * and both sides prove knowledge of the secret with MACs over fresh nonces, 
+ * instead of signing and verifying challenges.
+ *
+ * <p>Tickets are bound to the service id and the authenticated address of the 
+ * client, if any. Tickets issued to an entity are revoked when the entity changes.</p>
+ *
+ * @author Michael Sargent
+ */
+final class Resumption {
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int SERIAL_VERSION = 0;
+	private static final int NONCE_SIZE = 16;
+	private static final byte[] SERVER = {1};
+	private static final byte[] CLIENT = {2};
+	private static final byte[] SECRET = {3};
+	
+	// server side
+	private final byte[] key = new byte[32];
+	private final Map<Address, Long> revoked = new ConcurrentHashMap<>();
+	private volatile long lifetime;
+	// the longest lifetime tickets were issued with - a revocation older than this 
+	// only covers tickets which have expired
+	private volatile long longest;
+	// client side - tickets held for servers by service address
+	private final Map<ServiceAddress, Held> held = new ConcurrentHashMap<>();
+	
+	Resumption() {
+		ServiceAdmin.random.nextBytes(key);
+	}
+	
+	// 0 disables issuing tickets
+	synchronized void setLifetime(long value, TimeUnit unit) {
+		var l = unit.toMillis(value);
+		longest = Math.max(longest, l);
+		lifetime = l;
+	}
+	
+	// invalidates tickets issued to the given address so far
+	void revoke(Address address) {
+		if(address == null) return;
+		var now = System.currentTimeMillis();
+		var l = longest;
+		// no ticket was ever issued
+		if(l <= 0) return;
+		revoked.values().removeIf(r -> r < now - l);
+		revoked.put(address, now);
+	}
+	
+	int revoked() {
+		return revoked.size();
+	}
+	
+	// --- client side ---
+	
+	// offers a held ticket for the given server, returns true if the server accepted 
+	// it and proved it issued it, false if full authentication is needed
+	boolean resume(EncodedStream stream, ServiceAddress server) throws IOException {
+		var ticket = held.get(server);
+		if(ticket != null && ticket.expires < System.currentTimeMillis()) {
+			held.remove(server, ticket);
+			ticket = null;
+		}
+		var nonce = nonce();
+		stream.write(new Offer(ticket == null ? null : ticket.ticket, nonce));
+		if(ticket == null) return false;
+		var answer = stream.read(Answer::new);
+		if(!answer.accepted) {
+			held.remove(server, ticket);
+			return false;
+		}
+		if(!MessageDigest.isEqual(answer.mac, mac(ticket.secret, SERVER, nonce, answer.nonce))) {
+			held.remove(server, ticket);
+			throw new IOException("Resumption failed");
+		}
+		stream.write(new Proof(mac(ticket.secret, CLIENT, answer.nonce, nonce)));
+		return true;
+	}
+	
+	// stores the ticket issued by the server, if any
+	void receive(EncodedStream stream, ServiceAddress server) throws IOException {
+		var issued = stream.read(Issued::new);
+		if(issued.ticket == null) {
+			held.remove(server);
+		} else {
+			held.put(server, new Held(issued, System.currentTimeMillis()));
+		}
+	}
+	
+	// --- server side ---
+	
+	// reads the client's offer, returns the ticket if the client resumed with it
+	// or null if full authentication is needed
+	Ticket accept(EncodedStream stream, ServiceId id) throws IOException {
+		var offer = stream.read(Offer::new);
+		if(offer.ticket == null) return null;
+		var ticket = verify(offer.ticket, id);
+		if(ticket == null) {
+			stream.write(new Answer(false, null, null));
+			return null;
+		}
+		var secret = mac(key, SECRET, offer.ticket);
+		var nonce = nonce();
+		stream.write(new Answer(true, nonce, mac(secret, SERVER, offer.nonce, nonce)));
+		var proof = stream.read(Proof::new);
+		if(!MessageDigest.isEqual(proof.mac, mac(secret, CLIENT, nonce, offer.nonce))) {
+			throw new IOException("Resumption failed");
+		}
+		return ticket;
+	}
+	
+	// issues a ticket for the authenticated client, or none if tickets are disabled
+	void issue(EncodedStream stream, ServiceId id, Address client) throws IOException {
+		var l = lifetime;
+		if(l <= 0) {
+			stream.write(new Issued(null, null, 0));
+			return;
+		}
+		var now = System.currentTimeMillis();
+		var body = new Ticket(id, client, now, now + l).encode();
+		var out = new VarOutputStream();
+		out.writeBytes(body);
+		out.writeBytes(mac(key, body));
+		var ticket = out.toByteArray();
+		stream.write(new Issued(ticket, mac(key, SECRET, ticket), l));
+	}
+	
+	// returns the ticket if it was issued by us for the service and is still valid
+	private Ticket verify(byte[] b, ServiceId id) {
+		try {
+			var in = new VarInputStream(b);
+			var body = in.readBytes();
+			if(!MessageDigest.isEqual(in.readBytes(), mac(key, body))) return null;
+			var ticket = new Ticket(new VarInputStream(body));
+			if(!id.equals(ticket.id) || ticket.expires < System.currentTimeMillis()) return null;
+			if(ticket.client != null) {
+				var r = revoked.get(ticket.client);
+				if(r != null && ticket.issued <= r) return null;
+			}
+			return ticket;
+		} catch(IOException e) {
+			return null;
+		}
+	}
+	
+	private static byte[] nonce() {
+		var b = new byte[NONCE_SIZE];
+		ServiceAdmin.random.nextBytes(b);
+		return b;
+	}
+	
+	private static byte[] mac(byte[] key, byte[]... parts) {
+		try {
+			var mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(key, ALGORITHM));
+			for(var part : parts) mac.update(part);
+			return mac.doFinal();
+		} catch(GeneralSecurityException e) {
+			// HmacSHA256 is always available
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	// the contents of a ticket
+	static final class Ticket implements Encodable {
+		final ServiceId id;
+		// the authenticated client, null for public services
+		final Address client;
+		final long issued;
+		final long expires;
+		
+		Ticket(ServiceId id, Address client, long issued, long expires) {
+			this.id = id;
+			this.client = client;
+			this.issued = issued;
+			this.expires = expires;
+		}
+		
+		Ticket(VarInput in) throws IOException {
+			var serialVersion = in.readUnsignedByte();
+			id = in.read(ServiceId::new);
+			client = in.readBoolean() ? in.read(Address::new) : null;
+			issued = in.readLong();
+			expires = in.readLong();
+		}
+		
+		@Override
+		public void write(VarOutput out) throws IOException {
+			out.writeByte(SERIAL_VERSION);
+			out.write(id);
+			out.writeBoolean(client != null);
+			if(client != null) out.write(client);
+			out.writeLong(issued);
+			out.writeLong(expires);
+		}
+	}
+	
+	// a ticket held by a client
+	private static final class Held {
+		final byte[] ticket;
+		final byte[] secret;
+		final long expires;
+		
+		Held(Issued issued, long now) {
+			ticket = issued.ticket;
+			secret = issued.secret;
+			expires = now + issued.lifetime;
+		}
+	}
+	
+	// --- handshake records ---
+	
+	private static final class Offer implements Encodable {
+		final byte[] ticket;
+		final byte[] nonce;
+		
+		Offer(byte[] ticket, byte[] nonce) {
+			this.ticket = ticket;
+			this.nonce = nonce;
+		}
+		
+		Offer(VarInput in) throws IOException {
+			ticket = in.readBoolean() ? in.readBytes() : null;
+			nonce = in.readBytes();
+		}
+		
+		@Override
+		public void write(VarOutput out) throws IOException {
+			out.writeBoolean(ticket != null);
+			if(ticket != null) out.writeBytes(ticket);
+			out.writeBytes(nonce);
+		}
+	}
+	
+	private static final class Answer implements Encodable {
+		final boolean accepted;
+		final byte[] nonce;
+		final byte[] mac;
+		
+		Answer(boolean accepted, byte[] nonce, byte[] mac) {
+			this.accepted = accepted;
+			this.nonce = nonce;
+			this.mac = mac;
+		}
+		
+		Answer(VarInput in) throws IOException {
+			accepted = in.readBoolean();
+			nonce = accepted ? in.readBytes() : null;
+			mac = accepted ? in.readBytes() : null;
+		}
+		
+		@Override
+		public void write(VarOutput out) throws IOException {
+			out.writeBoolean(accepted);
+			if(accepted) {
+				out.writeBytes(nonce);
+				out.writeBytes(mac);
+			}
+		}
+	}
+	
+	private static final class Proof implements Encodable {
+		final byte[] mac;
+		
+		Proof(byte[] mac) {
+			this.mac = mac;
+		}
+		
+		Proof(VarInput in) throws IOException {
+			mac = in.readBytes();
+		}
+		
+		@Override
+		public void write(VarOutput out) throws IOException {
+			out.writeBytes(mac);
+		}
+	}
+	
+	private static final class Issued implements Encodable {
+		final byte[] ticket;
+		final byte[] secret;
+		final long lifetime;
+		
+		Issued(byte[] ticket, byte[] secret, long lifetime) {
+			this.ticket = ticket;
+			this.secret = secret;
+			this.lifetime = lifetime;
+		}
+		
+		Issued(VarInput in) throws IOException {
+			ticket = in.readBoolean() ? in.readBytes() : null;
+			secret = ticket == null ? null : in.readBytes();
+			lifetime = ticket == null ? 0 : in.readLong();
+		}
+		
+		@Override
+		public void write(VarOutput out) throws IOException {
+			out.writeBoolean(ticket != null);
+			if(ticket != null) {
+				out.writeBytes(ticket);
+				out.writeBytes(secret);
+				out.writeLong(lifetime);
+			}
+		}
+	}
+}
@@ -39,12 +39,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 import rs.igram.kiribi.net.Address;
@@ -56,6 +62,7 @@ import rs.igram.kiribi.net.Endpoint;
 import rs.igram.kiribi.net.EndpointProvider;
 import rs.igram.kiribi.net.NetworkExecutor;
 import rs.igram.kiribi.net.NetworkMonitor;
+import rs.igram.kiribi.service.util.TimerWheel;
 import rs.igram.kiribi.service.util.retry.RetryListener;
 import rs.igram.kiribi.service.util.retry.RetryTask;
 
@@ -70,6 +77,10 @@ import static java.util.logging.Level.*;
 public final class ServiceAdmin {
 	static final Logger LOGGER = Logger.getLogger(ServiceAdmin.class.getName());
 	static final SecureRandom random;	
+	static final long DEFAULT_REQUEST_TIMEOUT = 60_000;
+	static final int DEFAULT_MAX_WRITE_BATCH = 64;
+	static final int DEFAULT_REQUEST_WINDOW = 256;
+	static final long DEFAULT_PEER_IDLE_TIMEOUT = 30_000;
 	
 	final Address address;	
 	private final EC25519PrivateKey privateKey;
@@ -83,6 +94,33 @@ public final class ServiceAdmin {
 	
 	private EntityManager mgr;
 	
+	// request expiry
+	final TimerWheel timer = new TimerWheel("ServiceAdmin.timer");
+	private final LongAdder expiredRequests = new LongAdder();
+	private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+	
+	// write coalescing
+	private volatile int maxWriteBatch = DEFAULT_MAX_WRITE_BATCH;
+	private volatile long writeLinger;
+	
+	// flow control
+	private volatile int requestWindow = DEFAULT_REQUEST_WINDOW;
+	
+	// compression - disabled if 0
+	private volatile int compressionThreshold;
+	
+	// resumption tickets
+	final Resumption resumption = new Resumption();
+	
+	// multiplexed connections by peer
+	private final Map<Address, CompletableFuture<Transponder>> peers = new ConcurrentHashMap<>();
+	private volatile boolean multiplexing;
+	private volatile long peerIdleTimeout = DEFAULT_PEER_IDLE_TIMEOUT;
+	
+	// virtual threads - created on first use
+	private ExecutorService virtualExecutor;
+	private volatile boolean virtualThreads;
+	
 	static {
 		try {
 			random = SecureRandom.getInstance("SHA1PRNG"); 
@@ -139,6 +177,315 @@ public final class ServiceAdmin {
 		return random.nextLong();
 	}
 	
+	/**
+	 * Sets the default time after which requests which have not received a response 
+	 * expire. Expired requests are discarded and their response listeners notified
+	 * with an error.
+	 *
+	 * @param timeout The request timeout.
+	 * @param unit The time unit of the timeout.
+	 * @throws IllegalArgumentException if timeout is not positive.
+	 */	
+	public void setRequestTimeout(long timeout, TimeUnit unit) {
+		if(timeout < 1) throw new IllegalArgumentException("timeout must be positive");
+		requestTimeout = unit.toMillis(timeout);
+	}
+	
+	// default request timeout in milliseconds
+	long requestTimeout() {
+		return requestTimeout;
+	}
+	
+	/**
+	 * Sets how outbound messages are coalesced into endpoint writes. Each connection 
+	 * writes all queued messages, up to <code>maxBatch</code>, in a single write. 
+	 * A positive linger time delays a write to wait for more messages, trading 
+	 * latency for throughput. Applies to connections opened after this call.
+	 *
+	 * @param maxBatch The maximum number of messages per write, at most 1024.
+	 * @param linger The maximum time to wait for more messages before writing.
+	 * @param unit The time unit of the linger time.
+	 * @throws IllegalArgumentException if maxBatch is not between 1 and 1024 or 
+	 * linger is negative.
+	 */	
+	public void setWriteCoalescing(int maxBatch, long linger, TimeUnit unit) {
+		if(maxBatch < 1 || maxBatch > MessageBatch.MAX_SIZE) {
+			throw new IllegalArgumentException("maxBatch must be between 1 and "+MessageBatch.MAX_SIZE);
+		}
+		if(linger < 0) throw new IllegalArgumentException("linger must not be negative");
+		maxWriteBatch = maxBatch;
+		writeLinger = unit.toNanos(linger);
+	}
+	
+	int maxWriteBatch() {
+		return maxWriteBatch;
+	}
+	
+	// linger time in nanoseconds
+	long writeLinger() {
+		return writeLinger;
+	}
+	
+	/**
+	 * Sets the request window advertised to peers when a connection is established,
+	 * that is the maximum number of requests a peer may have outstanding on a single 
+	 * connection. Requests beyond the window are answered with an error. Applies to 
+	 * connections opened after this call.
+	 *
+	 * @param value The request window.
+	 * @throws IllegalArgumentException if value is not positive.
+	 */	
+	public void setRequestWindow(int value) {
+		if(value < 1) throw new IllegalArgumentException("value must be positive");
+		requestWindow = value;
+	}
+	
+	int requestWindow() {
+		return requestWindow;
+	}
+	
+	/**
+	 * Sets the payload size from which messages are compressed. Compression is used 
+	 * on a connection only if both sides enable it, each side compressing the 
+	 * messages it sends. Payloads which don't shrink are sent uncompressed. 
+	 * Compression is disabled by default. Applies to connections opened after this call.
+	 *
+	 * @param threshold The minimum payload size in bytes to compress, or <code>0</code> 
+	 * to disable compression.
+	 * @throws IllegalArgumentException if threshold is negative.
+	 */	
+	public void setCompression(int threshold) {
+		if(threshold < 0) throw new IllegalArgumentException("threshold must not be negative");
+		compressionThreshold = threshold;
+	}
+	
+	int compressionThreshold() {
+		return compressionThreshold;
+	}
+	
+	/**
+	 * Returns the number of requests which expired without receiving a response.
+	 *
+	 * @return The number of requests which expired without receiving a response.
+	 */	
+	public long expiredRequests() {
+		return expiredRequests.sum();
+	}
+	
+	void expired() {
+		expiredRequests.increment();
+	}
+	
+	/**
+	 * Sets the limits on handshakes of incoming connections. Handshakes run on a 
+	 * pool of <code>max</code> threads rather than on the accept path. Connections 
+	 * arriving while <code>max</code> handshakes are pending are closed, and a 
+	 * handshake which doesn't complete within the timeout is aborted. The defaults 
+	 * are 64 handshakes and 10 seconds.
+	 *
+	 * @param max The maximum number of pending handshakes.
+	 * @param timeout The handshake deadline.
+	 * @param unit The time unit of the timeout.
+	 * @throws IllegalArgumentException if max or timeout is not positive.
+	 */	
+	public void setHandshakeLimits(int max, long timeout, TimeUnit unit) {
+		if(max < 1) throw new IllegalArgumentException("max must be positive");
+		if(timeout < 1) throw new IllegalArgumentException("timeout must be positive");
+		server.setHandshakeLimits(max, timeout, unit);
+	}
+	
+	/**
+	 * Sets the limits on authenticated incoming connections, overall and per peer 
+	 * address. A connection beyond a limit is refused, or if <code>evict</code> is 
+	 * <code>true</code>, the least recently active connection counting against the 
+	 * same limit is closed to make room. The defaults are 4096 connections, 64 per 
+	 * peer, without eviction.
+	 *
+	 * @param max The maximum number of incoming connections.
+	 * @param maxPerPeer The maximum number of incoming connections from one peer.
+	 * @param evict <code>true</code> to evict idle connections rather than refuse new ones.
+	 * @throws IllegalArgumentException if max or maxPerPeer is not positive.
+	 */	
+	public void setConnectionLimits(int max, int maxPerPeer, boolean evict) {
+		if(max < 1) throw new IllegalArgumentException("max must be positive");
+		if(maxPerPeer < 1) throw new IllegalArgumentException("maxPerPeer must be positive");
+		server.connections.setLimits(max, maxPerPeer, evict);
+	}
+	
+	/**
+	 * Returns the number of incoming connections which completed their handshake.
+	 *
+	 * @return The number of incoming connections which completed their handshake.
+	 */	
+	public long acceptedHandshakes() {
+		return server.acceptedHandshakes();
+	}
+	
+	/**
+	 * Returns the number of incoming connections closed because their handshake 
+	 * did not complete in time.
+	 *
+	 * @return The number of handshakes which timed out.
+	 */	
+	public long timedOutHandshakes() {
+		return server.timedOutHandshakes();
+	}
+	
+	/**
+	 * Returns the number of incoming connections closed because too many 
+	 * handshakes were pending.
+	 *
+	 * @return The number of rejected handshakes.
+	 */	
+	public long rejectedHandshakes() {
+		return server.rejectedHandshakes();
+	}
+	
+	/**
+	 * Sets whether connection readers, handshakes and request handlers run on virtual
+	 * threads rather than on the network executor. Each open connection occupies a 
+	 * reader thread, so with virtual threads the number of connections is no longer
+	 * limited by the number of platform threads. Virtual threads require Java 21 or 
+	 * later, on earlier versions they cannot be enabled. Applies to connections opened 
+	 * after this call.
+	 *
+	 * @param enabled <code>true</code> to use virtual threads.
+	 * @return <code>true</code> if virtual threads are in use.
+	 */	
+	public synchronized boolean setVirtualThreads(boolean enabled) {
+		if(enabled && virtualExecutor == null) {
+			try {
+				// looked up reflectively to keep the Java 11 baseline
+				var m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				virtualExecutor = (ExecutorService)m.invoke(null);
+			} catch(ReflectiveOperationException e) {
+				LOGGER.log(WARNING, "Virtual threads not available: {0}", e.toString());
+				return false;
+			}
+		}
+		virtualThreads = enabled;
+		return enabled;
+	}
+	
+	/**
+	 * Sets the lifetime of session resumption tickets. A peer which authenticated 
+	 * less than the lifetime ago can reconnect by proving it holds the ticket 
+	 * issued to it, which takes a few MACs instead of signing and verifying 
+	 * challenges. Tickets issued to an entity are revoked when the entity changes.
+	 * Tickets are disabled by default.
+	 *
+	 * @param lifetime The ticket lifetime, or <code>0</code> to disable tickets.
+	 * @param unit The time unit of the lifetime.
+	 * @throws IllegalArgumentException if lifetime is negative.
+	 */	
+	public void setTicketLifetime(long lifetime, TimeUnit unit) {
+		if(lifetime < 0) throw new IllegalArgumentException("lifetime must not be negative");
+		resumption.setLifetime(lifetime, unit);
+	}
+	
+	/**
+	 * Sets whether client sessions share a single connection per peer. Each session 
+	 * then opens a channel on the connection to its service's host, which is 
+	 * authenticated once for all services instead of once per session. Both peers
+	 * must support multiplexing. Disabled by default.
+	 *
+	 * @param enabled <code>true</code> to multiplex sessions.
+	 */	
+	public void setMultiplexing(boolean enabled) {
+		multiplexing = enabled;
+	}
+	
+	boolean multiplexing() {
+		return multiplexing;
+	}
+	
+	/**
+	 * Sets how long a multiplexed connection to a peer stays open once its last 
+	 * session has closed, so that sessions opened soon after can reuse it. The 
+	 * default is 30 seconds.
+	 *
+	 * @param timeout The idle timeout.
+	 * @param unit The time unit of the timeout.
+	 * @throws IllegalArgumentException if timeout is negative.
+	 */	
+	public void setPeerIdleTimeout(long timeout, TimeUnit unit) {
+		if(timeout < 0) throw new IllegalArgumentException("timeout must not be negative");
+		peerIdleTimeout = unit.toMillis(timeout);
+	}
+	
+	// peer idle timeout in milliseconds
+	long peerIdleTimeout() {
+		return peerIdleTimeout;
+	}
+	
+	// forgets the multiplexed connection to the given peer, unless it has been replaced
+	void removePeer(Address host, Transponder connection) {
+		var f = peers.get(host);
+		if(f != null && f.getNow(null) == connection) peers.remove(host, f);
+	}
+	
+	// returns the open multiplexed connection to the given peer, connecting if needed -
+	// concurrent callers wait for the same connection
+	Transponder peer(Address host) throws ServiceException {
+		while(true) {
+			var connection = peers.get(host);
+			if(connection == null) {
+				var connecting = new CompletableFuture<Transponder>();
+				if(peers.putIfAbsent(host, connecting) != null) continue;
+				try {
+					var endpoint = doConnect(host, ServiceId.PEER);
+					var transponder = new Transponder(this, server().connections);
+					transponder.connectPeer(endpoint, host);
+					connecting.complete(transponder);
+					return transponder;
+				} catch(Exception e) {
+					peers.remove(host, connecting);
+					connecting.completeExceptionally(e);
+					throw new ServiceException(e);
+				}
+			}
+			try {
+				var transponder = connection.get();
+				if(transponder.isOpen()) return transponder;
+				peers.remove(host, connection);
+			} catch(ExecutionException e) {
+				// failed - retry
+				peers.remove(host, connection);
+			} catch(InterruptedException e) {
+				throw new ServiceException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Returns a new pool of client sessions.
+	 *
+	 * @param <S> The type of the pooled sessions.
+	 * @param factory Creates an unconnected session for a service address.
+	 * @param minIdle The number of idle sessions kept connected for each address used.
+	 * @param maxSize The maximum number of sessions for each address.
+	 * @param idleTimeout The time after which idle sessions above the minimum are closed.
+	 * @param unit The time unit of the idle timeout.
+	 * @return A new session pool.
+	 * @throws IllegalArgumentException if the sizes or timeout are invalid.
+	 */	
+	public <S extends Session> SessionPool<S> sessionPool(Function<ServiceAddress, S> factory, 
+		int minIdle, int maxSize, long idleTimeout, TimeUnit unit) {
+		
+		var pool = new SessionPool<S>(this, factory, minIdle, maxSize, idleTimeout, unit);
+		pool.schedule();
+		return pool;
+	}
+	
+	boolean virtualThreads() {
+		return virtualThreads;
+	}
+	
+	// submits a task which may block for the lifetime of a connection
+	Future<?> submit(Runnable task) {
+		return virtualThreads ? virtualExecutor.submit(task) : executor.submit(task);
+	}
+	
 	/**
 	 * Returns the port of this service admin.
 	 *
@@ -161,6 +508,23 @@ public final class ServiceAdmin {
 		return mgr;
 	}
 
+	/**
+	 * Returns the entity manager of this service admin, managing the entities of the
+	 * given store. The entities are loaded from the store, and changes made through the
+	 * entity manager are persisted to it.
+	 *
+	 * @param store The entity store. Will be ignored if the entity manager already exists.
+	 * @return The entity manager of this service admin.
+	 * @throws IOException if the entities could not be loaded.
+	 */	
+	public EntityManager persistentEntityManager(EntityStore store) throws IOException {
+		if (mgr == null) {
+			mgr = new EntityManager(store.load(), this);
+			mgr.store(store);
+		}
+		return mgr;
+	}
+
 	SessionServer server()  {
 		return server;
 	}
@@ -241,6 +605,15 @@ public final class ServiceAdmin {
 		synchronized (this) {
 			RetryTask.shutdown();
 			if(server != null) server.shutdown();
+			timer.shutdown();
+			if(virtualExecutor != null) virtualExecutor.shutdownNow();
+			if(mgr != null && mgr.store() != null) {
+				try {
+					mgr.store().close();
+				} catch(IOException e) {
+					LOGGER.log(WARNING, e.toString(), e);
+				}
+			}
 			endpointProvider.shutdown();
 			
 			LOGGER.log(INFO, "Shutdown ServiceAdmin with Address {0}", address);
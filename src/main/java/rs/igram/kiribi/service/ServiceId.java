@@ -40,6 +40,8 @@ public class ServiceId implements Encodable {
 	static final ServiceId NULL   = new ServiceId(0l);
 	// fixed
 	static final ServiceId ENTITY = new ServiceId(-1l);
+	// opens a connection multiplexing sessions with a peer
+	static final ServiceId PEER   = new ServiceId(-2l);
 	
 	private final long data;
 	    
@@ -25,14 +25,20 @@
 package rs.igram.kiribi.service;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 
+import rs.igram.kiribi.io.Encodable;
 import rs.igram.kiribi.net.Address;
 import rs.igram.kiribi.net.Endpoint;
 import rs.igram.kiribi.net.NetworkExecutor;
+import rs.igram.kiribi.service.util.TimerWheel;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -44,7 +50,11 @@ import static rs.igram.kiribi.service.Message.*;
  * @author Michael Sargent
  */
 public class Session {
-	private final Map<Byte, RequestHandler> handlers = new HashMap<>();
+	// indexed by unsigned message code, replaced rather than modified so readers
+	// always see a complete table
+	private volatile RequestHandler[] handlers = new RequestHandler[256];
+	private volatile StreamHandler[] streamHandlers = new StreamHandler[256];
+	private final Object handlersLock = new Object();
 	
 	/** The authentication factory associated with this session. */	
 	Supplier<Authenticator> authenticatorFactory;
@@ -67,7 +77,23 @@ public class Session {
 	/** The scope associated with this session. */
 	Scope scope;
 	
+	/** The channel of this session on a multiplexed connection, 0 otherwise. */
+	int channel;
+	
+	/** The entity authorized to use this session on a multiplexed connection. */
+	Entity authorized;
+	
+	/** Processes incoming requests concurrently, null if processed by the reader. */
+	RequestDispatcher dispatcher;
+	
 	private boolean configured;
+	private int maxConcurrentRequests = 1;
+	private boolean orderedResponses;
+	// in progress asynchronous connection, if any
+	private final AtomicReference<CompletableFuture<Void>> connecting = new AtomicReference<>();
+	
+	/** The behaviour of requests when the peer's request window is exhausted. */
+	volatile FlowControl flowControl = FlowControl.BLOCK;
 	
 	// service 
 	/**
@@ -146,6 +172,103 @@ public class Session {
 		}
 	}
 	
+	/**
+	 * Submit a request for processing without blocking the calling thread. If this
+	 * session is not open it is connected asynchronously first. The returned future
+	 * completes exceptionally with a <code>ServiceException</code> if the request 
+	 * fails or is not completed within the timeout.
+	 *
+	 * <p>Requests made under {@link FlowControl#BLOCK} can still block when the peer's 
+	 * request window is exhausted, use {@link FlowControl#QUEUE} to avoid this.</p>
+	 *
+	 * @param <T> The generic type of the request.
+	 * @param timeout The timeout of the request in seconds, including connecting.
+	 * @param request The request.
+	 * @return A future which completes with the result of the request.
+	 */
+	protected <T> CompletableFuture<T> requestAsync(long timeout, Request<T> request) {
+		if(!isOpen() && isServiceSession) throw new IllegalStateException("Not a proxy session");
+		
+		CompletableFuture<T> future = new CompletableFuture<>();
+		var connected = connectAsync();
+		expire(future, timeout);
+		connected.whenComplete((v, t) -> {
+			try {
+				if(t != null) throw t;
+				request.request(future);
+			} catch(Throwable e) {
+				future.completeExceptionally(exception(e));
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Submit a submission for processing without blocking the calling thread. If this
+	 * session is not open it is connected asynchronously first. The returned future
+	 * completes exceptionally with a <code>ServiceException</code> if the submission 
+	 * fails or is not completed within the timeout.
+	 *
+	 * @param timeout The timeout of the submission in seconds, including connecting.
+	 * @param submission The submission.
+	 * @return A future which completes when the submission has been processed.
+	 */
+	protected CompletableFuture<Void> submitAsync(long timeout, Submission submission) {
+		return requestAsync(timeout, submission::submit);
+	}
+	
+	// connects on the admin executor, concurrent callers share the same connection attempt
+	private CompletableFuture<Void> connectAsync() {
+		if(isOpen()) return CompletableFuture.completedFuture(null);
+		if(admin == null) throw new IllegalStateException("ServiceAdmin is null!");
+		while(true) {
+			var pending = connecting.get();
+			if(pending != null) return pending;
+			var future = new CompletableFuture<Void>();
+			if(!connecting.compareAndSet(null, future)) continue;
+			admin.submit(() -> {
+				try {
+					synchronized(this) {
+						if(!isOpen()) connect(admin);
+					}
+					connecting.set(null);
+					if(isOpen()) {
+						future.complete(null);
+					} else {
+						future.completeExceptionally(new ServiceException(new IOException("Not connected")));
+					}
+				} catch(Throwable e) {
+					connecting.set(null);
+					future.completeExceptionally(exception(e));
+				}
+			});
+			return future;
+		}
+	}
+	
+	// fails the future if it has not completed within the timeout
+	private void expire(CompletableFuture<?> future, long timeout) {
+		var t = new TimerWheel.Timeout() {
+			@Override
+			protected void expired() {
+				admin.executor.submit(() -> 
+					future.completeExceptionally(new ServiceException(new TimeoutException("Request timed out")))
+				);
+			}
+		};
+		admin.timer.schedule(t, timeout, SECONDS);
+		future.whenComplete((r, e) -> t.cancel());
+	}
+	
+	// same exception the blocking methods would throw
+	private static Throwable exception(Throwable t) {
+		try {
+			return new ServiceException(t);
+		} catch(RuntimeException e) {
+			return e;
+		}
+	}
+	
 	// called immediately after initial connection - override to set handlers
 	/** Called immediately after initial connection - override to set response handlers. */	
 	protected void configure() {}
@@ -166,14 +289,32 @@ public class Session {
 			configure();
 		}
 		try {
-			var endpoint = admin.doConnect(address == null ? null : address.host(), id);
-			var transponder = new Transponder(admin.executor, admin.server().transponders);
-			transponder.connectProxy(endpoint, this);
+			if(admin.multiplexing()) {
+				connectChannel();
+			} else {
+				var endpoint = admin.doConnect(address == null ? null : address.host(), id);
+				var transponder = new Transponder(admin, admin.server().connections);
+				transponder.connectProxy(endpoint, this);
+			}
 		} catch(Exception e) {
 			throw new ServiceException(e);
 		}
 	}
 	
+	// opens a channel on the shared connection to the service's host
+	private void connectChannel() throws Exception {
+		if(scope == Scope.RESTRICTED) {
+			// as for a dedicated connection the host must be a known entity
+			var entity = admin.entityManager(null).entity(address.host());
+			if(entity.isEmpty()) {
+				authenticationFailed(new IOException("Authentication Failed"));
+				return;
+			}
+			authorized = entity.get();
+		}
+		admin.peer(address.host()).open(this);
+	}
+	
 	// called by transponder
 	final void connected(Transponder value) {
 		transponder = value;
@@ -181,6 +322,8 @@ public class Session {
 			configure();
 			configured = true;
 		}
+		dispatcher = maxConcurrentRequests == 1 ? null :
+			new RequestDispatcher(value, maxConcurrentRequests, orderedResponses);
 		
 		var executor = (admin == null) ?
 			value.executor : 					// service session
@@ -220,6 +363,7 @@ public class Session {
 	 * @throws IOException if there was a probem during the request.
 	 */
 	protected final void request(Message request) throws IOException {
+		request.channel(channel);
 		transponder.request(request);
 	}	
 			
@@ -233,8 +377,83 @@ public class Session {
 	protected final void request(Message request, ResponseListener... listeners) throws IOException {
 		// should have notified session earlier, eg, auth failed, but handle here just in case
 		if(transponder == null) throw new IOException("Not connected");
+		request.channel(channel);
 		transponder.request(request, listeners);
 	}
+			
+	/**
+	 * Submit a request message for processing which expires if no response
+	 * has been received within the given timeout.
+	 *
+	 * @param request The request message.
+	 * @param timeout The timeout of the request in seconds.
+	 * @param listeners An array of response listeners each with a different code.
+	 * @throws IOException if there was a probem during the request.
+	 */
+	protected final void request(Message request, long timeout, ResponseListener... listeners) throws IOException {
+		if(transponder == null) throw new IOException("Not connected");
+		request.channel(channel);
+		transponder.request(request, timeout, SECONDS, listeners);
+	}
+	
+	/**
+	 * Returns a publisher which sends a request message when subscribed to and 
+	 * publishes the chunks of its streamed response. Chunks are only sent by the 
+	 * peer as they are requested by the subscriber. The payload of a chunk is only 
+	 * valid until <code>onNext</code> returns. 
+	 *
+	 * <p>The stream uses one of the peer's request window for its lifetime and fails 
+	 * immediately if the window is exhausted. The publisher can only be subscribed 
+	 * to once.</p>
+	 *
+	 * @param request The request message.
+	 * @return A publisher of the response chunks.
+	 */
+	protected final Flow.Publisher<Message> stream(Message request) {
+		var subscribed = new AtomicBoolean();
+		return subscriber -> {
+			var t = transponder;
+			if(!subscribed.compareAndSet(false, true)) {
+				reject(subscriber, new IllegalStateException("Already subscribed"));
+			} else if(t == null) {
+				reject(subscriber, new IOException("Not connected"));
+			} else {
+				request.channel(channel);
+				t.stream(request, subscriber);
+			}
+		};
+	}
+	
+	/**
+	 * Transfers the data identified by the given key from the peer in fixed size, 
+	 * checksummed chunks, starting at the given offset. Only a few chunks are held 
+	 * in memory at a time whatever the size of the data. If the transfer fails, it 
+	 * can be resumed by transferring again from the offset the sink has reached.
+	 *
+	 * @param code The message code of the transfer, handled by the peer with 
+	 * {@link #handleTransfer(byte, TransferSource)}.
+	 * @param key The key identifying the data to the peer, may be <code>null</code>.
+	 * @param offset The offset to start from.
+	 * @param sink The sink receiving the data.
+	 * @return A future which completes with the offset reached at the end of the data.
+	 * @throws IOException if there was a problem writing the key.
+	 */
+	protected final CompletableFuture<Long> transfer(byte code, Encodable key, long offset, TransferSink sink) throws IOException {
+		var future = new CompletableFuture<Long>();
+		stream(Transfer.request(code, offset, key)).subscribe(Transfer.receiver(offset, sink, future));
+		return future;
+	}
+	
+	private static void reject(Flow.Subscriber<?> subscriber, Throwable t) {
+		subscriber.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {}
+			
+			@Override
+			public void cancel() {}
+		});
+		subscriber.onError(t);
+	}
 					
 	/**
 	 * Add a request handler to handle requests with the given message code.
@@ -243,18 +462,80 @@ public class Session {
 	 * @param handler A request handler.
 	 */
 	protected final void handle(byte code, RequestHandler handler) {
-		handlers.put(code, handler);
+		synchronized(handlersLock) {
+			var table = handlers.clone();
+			table[code & 0xff] = handler;
+			handlers = table;
+		}
+	}
+		
+	/**
+	 * Add a stream handler to handle requests with the given message code with a 
+	 * streamed response. Takes precedence over a request handler for the same code.
+	 *
+	 * @param code The message code to handle.
+	 * @param handler A stream handler.
+	 */
+	protected final void handleStream(byte code, StreamHandler handler) {
+		synchronized(handlersLock) {
+			var table = streamHandlers.clone();
+			table[code & 0xff] = handler;
+			streamHandlers = table;
+		}
+	}
+		
+	/**
+	 * Add a transfer source to serve chunked transfers with the given message code.
+	 *
+	 * @param code The message code to handle.
+	 * @param source The source of the transferred data.
+	 */
+	protected final void handleTransfer(byte code, TransferSource source) {
+		handleStream(code, Transfer.handler(source));
 	}
 		
 	// called by transponder
-	final RequestHandler handler(byte code) {return handlers.get(code);}
+	final RequestHandler handler(byte code) {return handlers[code & 0xff];}
+	
+	// called by transponder
+	final StreamHandler streamHandler(byte code) {return streamHandlers[code & 0xff];}
+	
+	/**
+	 * Sets the maximum number of incoming requests this session processes concurrently.
+	 * With the default of <code>1</code> requests are processed one at a time in the
+	 * order they arrive on the connection. Should be called from {@link #configure()}.
+	 *
+	 * @param value The maximum number of requests to process concurrently.
+	 * @param ordered If <code>true</code>, responses to requests with the same message 
+	 * code are sent in the order the requests arrived.
+	 * @throws IllegalArgumentException if value is not positive.
+	 */
+	protected final void setMaxConcurrentRequests(int value, boolean ordered) {
+		if(value < 1) throw new IllegalArgumentException("value must be positive");
+		maxConcurrentRequests = value;
+		orderedResponses = ordered;
+	}
+	
+	/**
+	 * Sets how requests behave when the number of outstanding requests has reached 
+	 * the window advertised by the peer. The default is {@link FlowControl#BLOCK}.
+	 *
+	 * @param value The flow control behaviour.
+	 */
+	protected final void setFlowControl(FlowControl value) {
+		if(value == null) throw new NullPointerException("value");
+		flowControl = value;
+	}
 	
 	/** 
 	 * Returns the entity associated with this session. 
 	 *
 	 * @return The entity associated with this session. 
 	 */
-	public Entity entity() {return transponder == null ? null : transponder.entity();}
+	public Entity entity() {
+		if(authorized != null) return authorized;
+		return transponder == null || channel != 0 ? null : transponder.entity();
+	}
 		
 	/** 
 	 * Returns <code>true</code> if this session is open, <code>false</code> otherwise. 
@@ -265,9 +546,24 @@ public class Session {
 		
 	/** Closes this session. */
 	public void close() {
-		if(transponder != null) transponder.close();
+		var t = transponder;
 		transponder = null;
+		if(t == null) return;
+		if(channel == 0) {
+			t.close();
+		} else {
+			// the connection stays open for other sessions
+			t.close(this);
+			channel = 0;
+		}
 	}	
+	
+	// called by transponder when the channel of this session is closed
+	final void channelClosed(Exception e) {
+		transponder = null;
+		channel = 0;
+		closed(e);
+	}
 		
 	@Override
 	public int hashCode() {
@@ -285,7 +581,7 @@ public class Session {
 			var s = (Session)o;
 			return id.equals(s.id)
 			       && authenticatorFactory.equals(s.authenticatorFactory)
-			       && handlers.equals(s.handlers)
+			       && Arrays.equals(handlers, s.handlers)
 			       && ((address == null && s.address == null) || address.equals(s.address))
 			       && ((transponder == null && s.transponder == null) || transponder.equals(s.transponder))
 			       && configured == s.configured;
@@ -293,6 +589,21 @@ public class Session {
 		return false;
 	}
 	
+	/** Enumeration of flow control behaviours when the peer's request window is exhausted. */	
+	protected static enum FlowControl {
+		/** 
+		 * Block the requesting thread until the window opens or the request times out,
+		 * the wait counting against the request's timeout. Requests made from a handler 
+		 * running on the connection's reader, that is one processing requests one at a 
+		 * time, fail immediately instead since the window can't open while it waits.
+		 */	
+		BLOCK,
+		/** Fail the request immediately with an <code>IOException</code>. */	
+		FAIL,
+		/** Queue the request locally and send it once the window opens. */	
+		QUEUE
+	}
+	
 	/**
 	 * Functional interface for requests.
 	 *
@@ -379,6 +690,11 @@ public class Session {
 			}
 		}
 		
+		@Override
+		public void error(String msg) {
+			if(errorHandler != null) errorHandler.error(msg);
+		}
+		
 		@Override
 		public byte code() {
 			return code;
@@ -0,0 +1,304 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import rs.igram.kiribi.service.util.TimerWheel;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A pool of connected client sessions keyed by service address. Sessions are 
+ * borrowed, used and returned rather than connected for each use. Idle sessions 
+ * are checked to be open before being handed out, closed once idle for longer 
+ * than the idle timeout, and a minimum number are kept connected for each address 
+ * the pool has been used with.
+ *
+ * <p>Instances are obtained from {@link ServiceAdmin#sessionPool}.</p>
+ *
+ * @param <S> The type of the pooled sessions.
+ * @author Michael Sargent
+ */
+public final class SessionPool<S extends Session> {
+	private final ServiceAdmin admin;
+	private final Function<ServiceAddress, S> factory;
+	private final int minIdle;
+	private final int maxSize;
+	private final long idleTimeout;
+	private final Map<ServiceAddress, Entry> entries = new ConcurrentHashMap<>();
+	private volatile boolean closed;
+	
+	SessionPool(ServiceAdmin admin, Function<ServiceAddress, S> factory, int minIdle, int maxSize, long idleTimeout, TimeUnit unit) {
+		if(minIdle < 0 || maxSize < 1 || minIdle > maxSize) throw new IllegalArgumentException("Invalid pool size");
+		if(idleTimeout < 1) throw new IllegalArgumentException("idleTimeout must be positive");
+		this.admin = admin;
+		this.factory = factory;
+		this.minIdle = minIdle;
+		this.maxSize = maxSize;
+		this.idleTimeout = unit.toNanos(idleTimeout);
+	}
+	
+	/**
+	 * Borrows an open session for the given address, connecting a new one if none 
+	 * is idle and the pool is not at its maximum size for the address.
+	 *
+	 * @param address The service address.
+	 * @param timeout The maximum time to wait for a session.
+	 * @param unit The time unit of the timeout.
+	 * @return An open session.
+	 * @throws ServiceException if no session could be connected or none became 
+	 * available within the timeout.
+	 */
+	public S borrow(ServiceAddress address, long timeout, TimeUnit unit) throws ServiceException {
+		if(closed) throw new IllegalStateException("Pool closed");
+		var entry = entries.computeIfAbsent(address, Entry::new);
+		var deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(true) {
+			S session = null;
+			synchronized(entry) {
+				while(true) {
+					// most recently used first so the rest can age out
+					var idle = entry.idle.pollLast();
+					if(idle != null) {
+						session = idle.session;
+						break;
+					}
+					if(entry.size < maxSize) {
+						entry.size++;
+						break;
+					}
+					var wait = deadline - System.nanoTime();
+					if(wait <= 0) throw new ServiceException(new TimeoutException("No session available for "+address));
+					try {
+						NANOSECONDS.timedWait(entry, wait);
+					} catch(InterruptedException e) {
+						throw new ServiceException(e);
+					}
+				}
+			}
+			if(session == null) {
+				session = connect(entry);
+			} else if(!session.isOpen()) {
+				discard(entry, session);
+				continue;
+			}
+			synchronized(entry) {
+				entry.borrowed.add(session);
+			}
+			return session;
+		}
+	}
+	
+	/**
+	 * Returns a borrowed session to the pool. Sessions which are no longer open 
+	 * are discarded. Returning a session which is not borrowed, such as one already
+	 * returned, does nothing.
+	 *
+	 * @param session The session to return.
+	 */
+	public void release(S session) {
+		var entry = entries.get(session.address);
+		if(entry == null) {
+			session.close();
+			return;
+		}
+		var open = session.isOpen();
+		synchronized(entry) {
+			if(!entry.borrowed.remove(session)) return;
+			if(!closed && open) {
+				entry.idle.addLast(new Idle(session, System.nanoTime()));
+				entry.notify();
+				return;
+			}
+		}
+		discard(entry, session);
+	}
+	
+	/**
+	 * Closes a borrowed session which should not be reused, freeing its place in the pool.
+	 * Sessions which are not borrowed are ignored.
+	 *
+	 * @param session The session to close.
+	 */
+	public void invalidate(S session) {
+		var entry = entries.get(session.address);
+		if(entry == null) {
+			session.close();
+			return;
+		}
+		synchronized(entry) {
+			if(!entry.borrowed.remove(session)) return;
+		}
+		discard(entry, session);
+	}
+	
+	/** Closes this pool and its idle sessions. Sessions returned later are closed. */
+	public void close() {
+		closed = true;
+		for(var entry : entries.values()) {
+			var evicted = new ArrayList<S>();
+			synchronized(entry) {
+				entry.idle.forEach(idle -> evicted.add(idle.session));
+				entry.size -= entry.idle.size();
+				entry.idle.clear();
+				entry.notifyAll();
+			}
+			evicted.forEach(Session::close);
+		}
+	}
+	
+	// the slot for the session has been reserved - it is freed if connecting fails
+	private S connect(Entry entry) throws ServiceException {
+		try {
+			var session = factory.apply(entry.address);
+			session.connect(admin);
+			// authentication failures are only notified
+			if(!session.isOpen()) throw new ServiceException(new IOException("Not connected"));
+			return session;
+		} catch(ServiceException | RuntimeException e) {
+			synchronized(entry) {
+				entry.size--;
+				entry.notify();
+			}
+			throw e;
+		}
+	}
+	
+	private void discard(Entry entry, S session) {
+		session.close();
+		synchronized(entry) {
+			entry.size--;
+			entry.notify();
+		}
+	}
+	
+	// schedules maintenance at half the idle timeout, at most once a second
+	void schedule() {
+		if(closed) return;
+		admin.timer.schedule(new TimerWheel.Timeout() {
+			@Override
+			protected void expired() {
+				admin.executor.submit(() -> {
+					maintain();
+					schedule();
+				});
+			}
+		}, Math.max(SECONDS.toNanos(1), idleTimeout / 2), NANOSECONDS);
+	}
+	
+	// closes dead and expired idle sessions and connects new ones up to the minimum
+	void maintain() {
+		if(closed) return;
+		var now = System.nanoTime();
+		for(var entry : entries.values()) {
+			var evicted = new ArrayList<S>();
+			var warm = 0;
+			synchronized(entry) {
+				for(var i = entry.idle.iterator(); i.hasNext();) {
+					var idle = i.next();
+					if(!idle.session.isOpen()) {
+						i.remove();
+						evicted.add(idle.session);
+					}
+				}
+				while(entry.idle.size() > minIdle && now - entry.idle.peekFirst().since > idleTimeout) {
+					evicted.add(entry.idle.pollFirst().session);
+				}
+				entry.size -= evicted.size();
+				// sessions still connecting from earlier maintenance will be idle
+				warm = Math.min(minIdle - entry.idle.size() - entry.warming, maxSize - entry.size);
+				if(warm > 0) {
+					entry.size += warm;
+					entry.warming += warm;
+				}
+				if(!evicted.isEmpty()) entry.notifyAll();
+			}
+			evicted.forEach(Session::close);
+			for(int i = 0; i < warm; i++) admin.executor.submit(() -> warm(entry));
+		}
+	}
+	
+	// connects an idle session, its slot has been reserved
+	private void warm(Entry entry) {
+		S session;
+		try {
+			session = connect(entry);
+		} catch(ServiceException | RuntimeException e) {
+			synchronized(entry) {
+				entry.warming--;
+			}
+			// retried at the next maintenance
+			return;
+		}
+		synchronized(entry) {
+			entry.warming--;
+			if(!closed) {
+				entry.idle.addLast(new Idle(session, System.nanoTime()));
+				entry.notify();
+				return;
+			}
+		}
+		discard(entry, session);
+	}
+	
+	// sessions of one address
+	private final class Entry {
+		final ServiceAddress address;
+		final ArrayDeque<Idle> idle = new ArrayDeque<>();
+		// by identity, so a session is only returned once per borrow
+		final Set<S> borrowed = Collections.newSetFromMap(new IdentityHashMap<>());
+		// borrowed, idle and connecting sessions
+		int size;
+		// sessions being connected by maintenance
+		int warming;
+		
+		Entry(ServiceAddress address) {
+			this.address = address;
+		}
+	}
+	
+	private final class Idle {
+		final S session;
+		final long since;
+		
+		Idle(S session, long since) {
+			this.session = session;
+			this.since = since;
+		}
+	}
+}
@@ -30,10 +30,14 @@ import java.net.SocketException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
@@ -42,9 +46,10 @@ import rs.igram.kiribi.net.Endpoint;
 import rs.igram.kiribi.net.EndpointProvider;
 import rs.igram.kiribi.net.NetworkExecutor;
 import rs.igram.kiribi.net.NetworkMonitor;
-import rs.igram.kiribi.net.Endpoint;
 import rs.igram.kiribi.net.ServerEndpoint;
+import rs.igram.kiribi.service.util.TimerWheel;
 
+import static java.util.concurrent.TimeUnit.*;
 import static java.util.logging.Level.*;
 
 import static rs.igram.kiribi.net.NetworkMonitor.Status.*;
@@ -57,16 +62,28 @@ import static rs.igram.kiribi.net.NetworkMonitor.Status.*;
 // manage incoming connections
 final class SessionServer {
 	static final Logger LOGGER = Logger.getLogger(SessionServer.class.getName());
+	static final int DEFAULT_MAX_HANDSHAKES = 64;
+	static final long DEFAULT_HANDSHAKE_TIMEOUT = 10_000;
+	
 	private final EndpointProvider endpointProvider;
 		
-	private final Map<Endpoint,Transponder> endpoints = Collections.synchronizedMap(new HashMap<>());
 	private final Map<ServiceId, Service> serviceMap = Collections.synchronizedMap(new HashMap<>());
 	
 	private NetworkExecutor executor;
 	private NetworkMonitor monitor;
 	private ServiceAdmin admin;
 	
-	final Set<Transponder> transponders = Collections.synchronizedSet(new HashSet<>());
+	final ConnectionRegistry connections = new ConnectionRegistry();
+	
+	// handshakes run off the accept callback, pending ones are capped - the pool
+	// is shut down with the server and replaced when it is activated again
+	private volatile ThreadPoolExecutor handshakes;
+	private final AtomicInteger pending = new AtomicInteger();
+	private final LongAdder acceptedHandshakes = new LongAdder();
+	private final LongAdder timedOutHandshakes = new LongAdder();
+	private final LongAdder rejectedHandshakes = new LongAdder();
+	private volatile int maxHandshakes = DEFAULT_MAX_HANDSHAKES;
+	private volatile long handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
 	
 	protected ServerEndpoint endpoint;
 	protected boolean autoStart = true;
@@ -78,8 +95,40 @@ final class SessionServer {
 		
 		executor = admin.executor;
 		monitor = new NetworkMonitor(executor, this::processNetworkStatusChange, admin.networkInterface);
+		
+		handshakes = handshakes(DEFAULT_MAX_HANDSHAKES);
+	}
+	
+	private static ThreadPoolExecutor handshakes(int max) {
+		var pool = new ThreadPoolExecutor(max, max, 
+			30, SECONDS, new LinkedBlockingQueue<>(), r -> {
+				var t = new Thread(r, "SessionServer.handshake");
+				t.setDaemon(true);
+				return t;
+			});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
 	}
 	
+	synchronized void setHandshakeLimits(int max, long timeout, TimeUnit unit) {
+		// keep core <= max while resizing
+		if(max > handshakes.getMaximumPoolSize()) {
+			handshakes.setMaximumPoolSize(max);
+			handshakes.setCorePoolSize(max);
+		} else {
+			handshakes.setCorePoolSize(max);
+			handshakes.setMaximumPoolSize(max);
+		}
+		maxHandshakes = max;
+		handshakeTimeout = unit.toMillis(timeout);
+	}
+	
+	long acceptedHandshakes() {return acceptedHandshakes.sum();}
+	
+	long timedOutHandshakes() {return timedOutHandshakes.sum();}
+	
+	long rejectedHandshakes() {return rejectedHandshakes.sum();}
+	
 	private void processNetworkStatusChange(NetworkMonitor.Status status) {
 		executor.submit(() -> {
 			try{
@@ -117,6 +166,9 @@ final class SessionServer {
 		starting = true;
 		try {
 			if (monitor.status.get() != UP) return;
+			synchronized(this) {
+				if(handshakes.isShutdown()) handshakes = handshakes(maxHandshakes);
+			}
 			endpoint = endpointProvider.server();
 			listen();
 			started = true;
@@ -134,12 +186,14 @@ final class SessionServer {
 			monitor.terminate();
 		} catch(IOException e) {
 			// ignore
+		} finally {
+			// interrupts running handshakes and closes the queued ones
+			for(var task : handshakes.shutdownNow()) ((Handshake)task).abort();
 		}
 	}
 	
 	public void deactivate() throws IOException {
-		transponders.forEach(t -> t.terminate());
-		transponders.clear();
+		connections.terminate();
 		if(endpoint == null) return;
 		endpoint.close();
 		started = false;
@@ -149,28 +203,101 @@ final class SessionServer {
 	}
 	
 	private void listen() throws IOException {
-		endpoint.accept(e -> {
-			try {
-				LOGGER.log(FINEST, "SessionServer.listen:  {0}", e);
-				accept(e);
-			} catch(Exception ex) {
-				try{
-					e.close();
-				} catch(IOException ex2) {
-					// ignore
-				}	
+		endpoint.accept(this::accepted);
+	}
+	
+	// called with each accepted endpoint, starts its handshake unless too many are pending
+	void accepted(Endpoint e) {
+		LOGGER.log(FINEST, "SessionServer.listen:  {0}", e);
+		if(pending.incrementAndGet() > maxHandshakes) {
+			pending.decrementAndGet();
+			rejectedHandshakes.increment();
+			LOGGER.log(FINE, "SessionServer.listen: too many handshakes, rejected {0}", e);
+			close(e);
+			return;
+		}
+		var timeout = new HandshakeTimeout(e);
+		var task = new Handshake(e, timeout);
+		try {
+			admin.timer.schedule(timeout, handshakeTimeout, MILLISECONDS);
+			if(admin.virtualThreads()) {
+				admin.submit(task);
+			} else {
+				handshakes.execute(task);
 			}
-		});
+		} catch(IllegalStateException | RejectedExecutionException ex) {
+			// shutting down
+			task.abort();
+		}
+	}
+	
+	private void handshake(Endpoint e, HandshakeTimeout timeout) {
+		try {
+			var t = accept(e);
+			if(timeout.cancel() && t.isOpen()) acceptedHandshakes.increment();
+		} catch(Exception ex) {
+			timeout.cancel();
+			close(e);
+		} finally {
+			pending.decrementAndGet();
+		}
+	}
+	
+	private static void close(Endpoint e) {
+		try{
+			e.close();
+		} catch(IOException ex) {
+			// ignore
+		}	
+	}
+	
+	private final class Handshake implements Runnable {
+		private final Endpoint endpoint;
+		private final HandshakeTimeout timeout;
+		
+		Handshake(Endpoint endpoint, HandshakeTimeout timeout) {
+			this.endpoint = endpoint;
+			this.timeout = timeout;
+		}
+		
+		@Override
+		public void run() {
+			handshake(endpoint, timeout);
+		}
+		
+		// gives up a handshake which will not run
+		void abort() {
+			timeout.cancel();
+			pending.decrementAndGet();
+			close(endpoint);
+		}
+	}
+	
+	// closes the endpoint of a handshake which missed its deadline, which fails
+	// the blocked handshake
+	private final class HandshakeTimeout extends TimerWheel.Timeout {
+		private final Endpoint endpoint;
+		
+		HandshakeTimeout(Endpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+		
+		@Override
+		protected void expired() {
+			timedOutHandshakes.increment();
+			LOGGER.log(FINE, "SessionServer: handshake timed out {0}", endpoint);
+			close(endpoint);
+		}
 	}
 
 	protected Transponder accept(Endpoint e) throws IOException {
-		var t = endpoints.get(e);
-		if(t == null) {
-			t = new Transponder(executor, transponders);
+		var t = new Transponder(admin, connections);
+		try {
 			t.connectServer(e, serviceMap, admin);
-			endpoints.put(e,t);
+		} catch(IOException ex) {
+			t.close();
+			throw ex;
 		}
-		
 		return t;
 	}	
 		
@@ -0,0 +1,47 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+
+/**
+ * Functional interface for handling requests with a streamed response.
+ *
+ * @author Michael Sargent
+ */
+@FunctionalInterface
+public interface StreamHandler {
+	/**
+	 * Respond to a request by sending a sequence of chunks to the given stream. 
+	 * The stream is ended when this method returns, or ended with an error if 
+	 * it throws an exception.
+	 *
+	 * @param request The request to handle.
+	 * @param stream The stream to send response chunks to.
+	 * @throws IOException if the was a problem processing the request.
+	 */
+	void respond(Message request, ResponseStream stream) throws IOException;
+}
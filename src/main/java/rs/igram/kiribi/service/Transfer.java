@@ -0,0 +1,149 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.zip.CRC32C;
+
+import rs.igram.kiribi.io.Encodable;
+
+/**
+ * Chunked transfer of large payloads over a response stream. The requester sends
+ * the offset to start from and the chunk size, followed by a key identifying the 
+ * data. Each chunk carries its offset, length and a CRC32C checksum of its data. 
+ * Only a few chunks are in flight at a time, so memory use is bounded by the chunk 
+ * size rather than the size of the data. A failed transfer is resumed by requesting
+ * it again from the offset the sink has reached.
+ *
+ * @author Michael Sargent
+ */
+final class Transfer {
+	/** The chunk size - fits a pooled buffer along with the chunk header. */
+	static final int CHUNK_SIZE = 32 * 1024;
+	// chunks requested ahead of those processed
+	private static final int WINDOW = 4;
+	
+	private Transfer() {}
+	
+	// a transfer request from the given offset, the key identifies the data to the source
+	static Message request(byte code, long offset, Encodable key) throws IOException {
+		if(offset < 0) throw new IllegalArgumentException("offset must not be negative");
+		var request = Message.request(code);
+		var out = request.out();
+		out.writeLong(offset);
+		out.writeInt(CHUNK_SIZE);
+		if(key != null) key.write(out);
+		return request;
+	}
+	
+	// streams the data opened by the source
+	static StreamHandler handler(TransferSource source) {
+		return (request, stream) -> {
+			var in = request.in();
+			var offset = in.readLong();
+			var size = in.readInt();
+			if(offset < 0 || size < 1 || size > CHUNK_SIZE) throw new IOException("Invalid transfer request");
+			var buf = new byte[size];
+			var crc = new CRC32C();
+			try(var data = source.open(request, offset)) {
+				while(!stream.isCancelled()) {
+					var n = data.readNBytes(buf, 0, size);
+					if(n == 0) return;
+					crc.reset();
+					crc.update(buf, 0, n);
+					var chunk = stream.chunk(request.code());
+					var out = chunk.out();
+					out.writeLong(offset);
+					out.writeInt(n);
+					out.write(buf, 0, n);
+					out.writeLong(crc.getValue());
+					stream.send(chunk);
+					offset += n;
+					if(n < size) return;
+				}
+			}
+		};
+	}
+	
+	// verifies chunks and writes them to the sink, completing with the offset reached
+	static Flow.Subscriber<Message> receiver(long offset, TransferSink sink, CompletableFuture<Long> future) {
+		return new Receiver(offset, sink, future);
+	}
+	
+	private static final class Receiver implements Flow.Subscriber<Message> {
+		private final TransferSink sink;
+		private final CompletableFuture<Long> future;
+		private final byte[] buf = new byte[CHUNK_SIZE];
+		private final CRC32C crc = new CRC32C();
+		private Flow.Subscription subscription;
+		private long position;
+		
+		Receiver(long offset, TransferSink sink, CompletableFuture<Long> future) {
+			this.position = offset;
+			this.sink = sink;
+			this.future = future;
+		}
+		
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(WINDOW);
+		}
+		
+		@Override
+		public void onNext(Message chunk) {
+			try {
+				var in = chunk.in();
+				var offset = in.readLong();
+				var n = in.readInt();
+				if(offset != position) throw new IOException("Unexpected chunk offset: "+offset);
+				if(n < 0 || n > CHUNK_SIZE) throw new IOException("Invalid chunk length: "+n);
+				in.readFully(buf, 0, n);
+				crc.reset();
+				crc.update(buf, 0, n);
+				if(in.readLong() != crc.getValue()) throw new IOException("Checksum mismatch at offset "+offset);
+				sink.write(offset, buf, 0, n);
+				position += n;
+				subscription.request(1);
+			} catch(IOException | RuntimeException e) {
+				subscription.cancel();
+				future.completeExceptionally(e);
+			}
+		}
+		
+		@Override
+		public void onError(Throwable t) {
+			future.completeExceptionally(t);
+		}
+		
+		@Override
+		public void onComplete() {
+			future.complete(position);
+		}
+	}
+}
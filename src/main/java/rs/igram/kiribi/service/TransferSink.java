@@ -0,0 +1,48 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+
+/**
+ * Functional interface for receiving the data of a chunked transfer.
+ *
+ * @author Michael Sargent
+ */
+@FunctionalInterface
+public interface TransferSink {
+	/**
+	 * Writes a verified chunk of data. Chunks are written in order, each starting 
+	 * where the previous one ended.
+	 *
+	 * @param offset The offset of the chunk in the transferred data.
+	 * @param b The buffer holding the chunk.
+	 * @param off The start of the chunk in the buffer.
+	 * @param len The length of the chunk.
+	 * @throws IOException if the chunk could not be written.
+	 */
+	void write(long offset, byte[] b, int off, int len) throws IOException;
+}
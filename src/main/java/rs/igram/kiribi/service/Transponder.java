@@ -25,19 +25,34 @@
 package rs.igram.kiribi.service;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import rs.igram.kiribi.net.Address;
 import rs.igram.kiribi.net.ConnectionState;
 import rs.igram.kiribi.net.Endpoint;
 import rs.igram.kiribi.net.NetworkExecutor;
+import rs.igram.kiribi.service.util.ConcurrentLongMap;
+import rs.igram.kiribi.service.util.TimerWheel;
 
 import static rs.igram.kiribi.service.Message.*;
 
@@ -49,20 +64,75 @@ import static rs.igram.kiribi.service.Message.*;
 final class Transponder implements Consumer<ConnectionState> {
 	private static final byte REQUEST = 0;
 	private static final byte RESPONSE = 1;
-	private Set<Transponder> transponders;
+	private static final byte CHUNK = 2;
+	private static final byte DEMAND = 3;
+	private static final byte OPEN = 4;
+	private static final byte CLOSE = 5;
+	// ends a response stream successfully
+	private static final Object COMPLETE = new Object();
+	private static final AtomicIntegerFieldUpdater<PendingRequest> CREDIT =
+		AtomicIntegerFieldUpdater.newUpdater(PendingRequest.class, "credit");
+	private ConnectionRegistry registry;
 
-	private final Map<Long, ResponseListener[]> activeRequests = new HashMap<Long, ResponseListener[]>();
+	// written by requesting threads, read and removed by the reader thread
+	private final ConcurrentLongMap<PendingRequest> activeRequests = new ConcurrentLongMap<>();
+	private final ServiceAdmin admin;
+	// streamed responses - being received keyed by our uids, being sent keyed by the peer's
+	private final ConcurrentLongMap<StreamSubscription> subscriptions = new ConcurrentLongMap<>();
+	private final ConcurrentLongMap<ResponseStream> streams = new ConcurrentLongMap<>();
+	// uids only need to be unique per connection
+	private final AtomicLong uids = new AtomicLong();
+	
+	// outbound messages are queued and written in batches by a single writer
+	private final ConcurrentLinkedQueue<Message> outbound = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean writing = new AtomicBoolean();
+	private final MessageBatch batch;
+	private final long linger;
+	
+	// flow control - credits for requests to the peer, requests in progress from the peer
+	private final Semaphore credits = new Semaphore(0);
+	private final ConcurrentLinkedQueue<PendingRequest> backlog = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger inbound = new AtomicInteger();
+	// uids of requests and streams given up on whose credit returns with their late 
+	// response, the peer counts them until then
+	private final ConcurrentLongMap<Object> abandoned = new ConcurrentLongMap<>();
+	private final ConnectionSettings settings;
+	
+	// compression, if negotiated - the deflater is only used by the writer and 
+	// the inflater by the reader, each is ended once its user has stopped
+	private volatile Deflater deflater;
+	private volatile Inflater inflater;
+	private int compressionThreshold;
 	
 	Endpoint endpoint;
 	Authenticator authenticator;
 	Session session;
 	NetworkExecutor executor;
 	
+	// sessions on a multiplexed peer connection by channel - channel 0 is the 
+	// session of a single service connection
+	private final ConcurrentLongMap<Session> channels = new ConcurrentLongMap<>();
+	private final AtomicInteger channelIds = new AtomicInteger();
+	Map<ServiceId, Service> services;
+	boolean multiplexed;
+	// the host of a client peer connection, which closes once idle
+	Address peer;
+	
 	private Future<?> reader;
+	private volatile Thread readerThread;
+	// claimed by the reader when it starts, or by terminate if it never will
+	private final AtomicBoolean reading = new AtomicBoolean();
+	// nano time of the last message batch read
+	private volatile long lastActive = System.nanoTime();
 
-	Transponder(NetworkExecutor executor, Set<Transponder> transponders) {
-		this.executor = executor;
-		this.transponders = transponders;
+	Transponder(ServiceAdmin admin, ConnectionRegistry registry) {
+		this.admin = admin;
+		this.executor = admin.executor;
+		this.registry = registry;
+		
+		batch = new MessageBatch(admin.maxWriteBatch());
+		linger = admin.writeLinger();
+		settings = new ConnectionSettings(admin);
 	}
 	 
 	private Authenticator authenticator(Scope scope, ServiceAddress address, ServiceAdmin admin) {
@@ -76,7 +146,18 @@ final class Transponder implements Consumer<ConnectionState> {
 		endpoint.state(this);
 		
 		// manage for shutdown
-		transponders.add(this);
+		registry.add(this);
+	}
+	
+	long lastActive() {
+		return lastActive;
+	}
+	
+	// admits the authenticated connection from a client, closes it if refused
+	private boolean admit() {
+		if(registry != null && registry.admit(this, authenticator.client())) return true;
+		close();
+		return false;
 	}
 
 	void connectProxy(Endpoint endpoint, Session session) throws IOException {
@@ -85,16 +166,13 @@ final class Transponder implements Consumer<ConnectionState> {
 		this.session = session;
 		endpoint.write(session.id);
 		authenticator = session.authenticatorFactory.get();
-		if(!authenticator.authenticate(true, endpoint)) {
+		if(!authenticateProxy(session.address)) {
 			session.authenticationFailed(new IOException("Authentication Failed"));
 			close();
 			return;
 		}
-		// notify listener
-		session.connected(this);
-		
-		// start message reader
-		reader = executor.submit(this::read);		
+		endpoint.write(settings);
+		start(endpoint.read(ConnectionSettings::new));
 	}
 
 	void connectServer(Endpoint endpoint, Map<ServiceId, Service> serviceMap, 
@@ -102,6 +180,10 @@ final class Transponder implements Consumer<ConnectionState> {
 	
 		connect(endpoint, false);
 		ServiceId id = endpoint.read(ServiceId::new);
+		if(ServiceId.PEER.equals(id)) {
+			acceptPeer(serviceMap);
+			return;
+		}
 		
 		var service = serviceMap.get(id);
 		if(service == null) throw new IOException("Unknown service: "+id);
@@ -110,16 +192,170 @@ final class Transponder implements Consumer<ConnectionState> {
 		
 		authenticator = authenticator(service.getScope(), service.getAddress(), admin);
 		
-		if(!authenticator.authenticate(false, endpoint)) {
+		if(!authenticateServer(id)) {
 			session.authenticationFailed(new IOException("Authentication Failed"));
 			close();
 			return;
 		}
+		if(!admit()) return;
+		var peer = endpoint.read(ConnectionSettings::new);
+		endpoint.write(settings);
+		start(peer);
+	}
+	
+	// opens a multiplexed connection to the given peer - both sides authenticate once,
+	// sessions are then added with open(Session)
+	void connectPeer(Endpoint endpoint, Address peer) throws IOException {
+		connect(endpoint, true);
 		
-		session.connected(this);
-		
-		// start message reader
-		reader = executor.submit(this::read);		
+		multiplexed = true;
+		this.peer = peer;
+		endpoint.write(ServiceId.PEER);
+		authenticator = new Authenticator.PeerAuthenticator(peer, admin.entityManager(null));
+		if(!authenticateProxy(new ServiceAddress(ServiceId.PEER, peer))) {
+			close();
+			throw new IOException("Authentication Failed");
+		}
+		endpoint.write(settings);
+		start(endpoint.read(ConnectionSettings::new));
+	}
+	
+	private void acceptPeer(Map<ServiceId, Service> serviceMap) throws IOException {
+		multiplexed = true;
+		services = serviceMap;
+		authenticator = new Authenticator.PeerAuthenticator(null, admin.entityManager(null));
+		if(!authenticateServer(ServiceId.PEER) || !admit()) {
+			close();
+			return;
+		}
+		var peer = endpoint.read(ConnectionSettings::new);
+		endpoint.write(settings);
+		start(peer);
+	}
+	
+	// called once authenticated and the settings exchanged - notifies the session,
+	// if any, and starts the message reader
+	void start(ConnectionSettings peer) {
+		negotiated(peer);
+		if(session != null) session.connected(this);
+		reader = admin.submit(this::read);
+	}
+	
+	// resumes with a ticket held for the server if possible, otherwise runs the 
+	// authenticator, then keeps the ticket issued by the server
+	private boolean authenticateProxy(ServiceAddress server) throws IOException {
+		var resumption = admin.resumption;
+		var authenticated = resumption.resume(endpoint, server) ?
+			authenticator.resumed(true, null) :
+			authenticator.authenticate(true, endpoint);
+		if(authenticated) resumption.receive(endpoint, server);
+		return authenticated;
+	}
+	
+	private boolean authenticateServer(ServiceId id) throws IOException {
+		var resumption = admin.resumption;
+		var ticket = resumption.accept(endpoint, id);
+		var authenticated = ticket != null ?
+			authenticator.resumed(false, ticket.client) :
+			authenticator.authenticate(false, endpoint);
+		if(authenticated) resumption.issue(endpoint, id, authenticator.client());
+		return authenticated;
+	}
+	
+	// opens a channel for the session to its service on this peer connection
+	void open(Session s) throws IOException {
+		var c = channelIds.incrementAndGet();
+		var opened = new CompletableFuture<Void>();
+		s.channel = c;
+		channels.put(c, s);
+		try {
+			// times out like any request
+			request(Message.open(c, s.id), admin.requestTimeout(), TimeUnit.MILLISECONDS, new ResponseListener() {
+				@Override
+				public void response(Message response) {
+					try {
+						if(response.status() == OK) {
+							opened.complete(null);
+						} else {
+							opened.completeExceptionally(new IOException(response.in().readUTF()));
+						}
+					} catch(IOException e) {
+						opened.completeExceptionally(e);
+					}
+				}
+				
+				@Override
+				public void error(String msg) {
+					opened.completeExceptionally(new IOException(msg));
+				}
+			});
+			opened.get();
+		} catch(IOException e) {
+			abandon(c, s);
+			throw e;
+		} catch(ExecutionException e) {
+			abandon(c, s);
+			var cause = e.getCause();
+			throw cause instanceof IOException ? (IOException)cause : new IOException(cause);
+		} catch(InterruptedException e) {
+			abandon(c, s);
+			throw new InterruptedIOException("Interrupted opening channel");
+		}
+		s.connected(this);
+	}
+	
+	// a channel which failed to open
+	private void abandon(int c, Session s) {
+		s.channel = 0;
+		if(channels.remove(c, s)) channelRemoved();
+	}
+	
+	void close(Session s) {
+		if(!channels.remove(s.channel, s)) return;
+		try {
+			write(Message.close(s.channel));
+		} catch(IOException e) {
+			// closing
+		}
+		channelRemoved();
+	}
+	
+	// a client peer connection closes once it has had no channel for the idle timeout
+	private void channelRemoved() {
+		if(peer == null || !channels.isEmpty()) return;
+		try {
+			admin.timer.schedule(new TimerWheel.Timeout() {
+				@Override
+				protected void expired() {
+					closeIfIdle();
+				}
+			}, admin.peerIdleTimeout(), TimeUnit.MILLISECONDS);
+		} catch(IllegalStateException e) {
+			// shutting down
+		}
+	}
+	
+	private void closeIfIdle() {
+		if(!channels.isEmpty() || !isOpen()) return;
+		// forgotten first, so no new channel can be opened on it - unless one 
+		// already was
+		admin.removePeer(peer, this);
+		if(channels.isEmpty()) close();
+	}
+	
+	// the session of the given channel, null if there is none
+	private Session session(int channel) {
+		return channel == 0 ? session : channels.get(channel);
+	}
+	
+	private void negotiated(ConnectionSettings peer) {
+		credits.release(peer.window);
+		if(settings.compression && peer.compression) {
+			compressionThreshold = Math.max(1, admin.compressionThreshold());
+			inflater = new Inflater();
+			// favour speed, messages are compressed on the writer thread
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		}
 	}
 	
 	// connection state
@@ -136,39 +372,302 @@ final class Transponder implements Consumer<ConnectionState> {
 	Entity entity() {return authenticator.entity();}
 
 	boolean isOpen() {return endpoint == null ? false : endpoint.isOpen();}
+	
+	// runs request handlers - on virtual threads if enabled
+	Future<?> submit(Runnable task) {return admin.submit(task);}
 		
 	void request(Message request, ResponseListener... l) throws IOException {
-		if(l != null) activeRequests.put(request.uid, l);
-		request(request);
+		request(request, admin.requestTimeout(), TimeUnit.MILLISECONDS, l);
+	}
+	
+	void request(Message request, long timeout, TimeUnit unit, ResponseListener... l) throws IOException {
+		if(l == null) {
+			request(request);
+			return;
+		}
+		request.uid(uids.incrementAndGet());
+		var pending = new PendingRequest(request, l);
+		// waiting for a credit counts against the timeout
+		var deadline = System.nanoTime() + unit.toNanos(timeout);
+		if(credits.tryAcquire()) {
+			pending.hold();
+		} else {
+			var s = session(request.channel());
+			var flowControl = s == null ? Session.FlowControl.FAIL : s.flowControl;
+			// credits are returned by the reader, so it can't wait for one
+			if(flowControl == Session.FlowControl.BLOCK && Thread.currentThread() == readerThread) {
+				flowControl = Session.FlowControl.FAIL;
+			}
+			switch(flowControl) {
+			case FAIL:
+				throw new IOException("Request window exhausted");
+			case BLOCK:
+				try {
+					if(!credits.tryAcquire(unit.toNanos(timeout), TimeUnit.NANOSECONDS)) {
+						throw new IOException("Request window exhausted");
+					}
+				} catch(InterruptedException e) {
+					throw new InterruptedIOException("Interrupted waiting for request window");
+				}
+				pending.hold();
+				break;
+			case QUEUE:
+				// sent once a credit is returned
+				break;
+			}
+		}
+		activeRequests.put(pending.uid, pending);
+		admin.timer.schedule(pending, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		if(pending.isHeld()) {
+			try {
+				write(request);
+			} catch(IOException e) {
+				if(activeRequests.remove(pending.uid, pending)) {
+					pending.cancel();
+					pending.finish();
+				}
+				throw e;
+			}
+		} else {
+			backlog.add(pending);
+			drainBacklog();
+		}
+	}
+	
+	// sends queued requests for as long as there are credits
+	private void drainBacklog() {
+		while(!backlog.isEmpty() && credits.tryAcquire()) {
+			var pending = backlog.poll();
+			if(pending == null || !pending.hold()) {
+				// empty, or the request expired while queued
+				credits.release();
+				if(pending == null) return;
+				continue;
+			}
+			try {
+				write(pending.request);
+			} catch(IOException e) {
+				// closing - pending requests are failed by terminate
+				return;
+			}
+		}
 	}
 	
+	private void releaseCredit() {
+		credits.release();
+		if(!backlog.isEmpty()) drainBacklog();
+	}
+	
+	// no response is expected, so no credit is taken
 	void request(Message request) throws IOException {
-		endpoint.write(request);
+		request.uid(uids.incrementAndGet());
+		request.oneway(true);
+		write(request);
+	}
+	
+	// sends a request whose response is streamed to the subscriber - takes a credit
+	// for the lifetime of the stream, failing if none is available
+	void stream(Message request, Flow.Subscriber<? super Message> subscriber) {
+		var uid = uids.incrementAndGet();
+		request.uid(uid);
+		var subscription = new StreamSubscription(uid, subscriber);
+		if(!credits.tryAcquire()) {
+			request.release();
+			subscription.signal(new IOException("Request window exhausted"));
+		} else {
+			subscriptions.put(uid, subscription);
+			try {
+				write(request);
+			} catch(IOException e) {
+				if(subscriptions.remove(uid, subscription)) {
+					releaseCredit();
+					subscription.signal(e);
+				}
+			}
+		}
+		// the request is queued first so demand can't overtake it
+		subscriber.onSubscribe(subscription);
+		subscription.subscribed();
+	}
+	
+	void write(Message msg) throws IOException {
+		if(msg.isReleased()) throw new IllegalStateException("Message already sent");
+		if(msg.length() > Message.MAX_PAYLOAD_SIZE) {
+			msg.release();
+			throw new IOException("Payload too large");
+		}
+		if(endpoint == null) throw new IOException("Endpoint closed");
+		outbound.add(msg);
+		if(writing.compareAndSet(false, true)) admin.executor.submit(this::drain);
+	}
+	
+	// single writer - runs until the outbound queue is empty
+	private void drain() {
+		while(true) {
+			try {
+				fill();
+				if(batch.size() == 0) {
+					writing.set(false);
+					// a message may have been queued after the last poll
+					if(outbound.isEmpty() || !writing.compareAndSet(false, true)) {
+						// closed while writing
+						if(endpoint == null) endDeflater();
+						return;
+					}
+					continue;
+				}
+				var e = endpoint;
+				if(e == null) throw new IOException("Endpoint closed");
+				e.write(batch);
+			} catch(IOException | RuntimeException e) {
+				batch.clear();
+				discardOutbound();
+				writing.set(false);
+				notify(e);
+				return;
+			}
+			batch.clear();
+		}
+	}
+	
+	// fills the batch, waiting up to the linger time for more messages once 
+	// the first has been taken
+	private void fill() {
+		var deadline = 0l;
+		var d = deflater;
+		while(!batch.isFull()) {
+			var msg = outbound.poll();
+			if(msg != null) {
+				if(d != null) compress(msg, d);
+				batch.add(msg);
+				if(deadline == 0 && linger > 0) deadline = System.nanoTime() + linger;
+			} else if(deadline != 0 && System.nanoTime() < deadline) {
+				LockSupport.parkNanos(1000);
+			} else {
+				return;
+			}
+		}
+	}
+	
+	// ends the deflater unless a writer is still using it, the writer ends it
+	// when it stops
+	private void endDeflater() {
+		var d = deflater;
+		if(d == null || !writing.compareAndSet(false, true)) return;
+		deflater = null;
+		d.end();
+		writing.set(false);
+	}
+	
+	// releases the messages which will not be written
+	private void discardOutbound() {
+		Message msg;
+		while((msg = outbound.poll()) != null) msg.release();
+	}
+	
+	private void compress(Message msg, Deflater d) {
+		try {
+			msg.compress(d, compressionThreshold);
+		} catch(IOException | RuntimeException e) {
+			// sent uncompressed
+		}
 	}
 	
 	Message respond(Message request) {
-		var handler = session.handler(request.code());
+		var s = session(request.channel());
+		var handler = s == null ? null : s.handler(request.code());
 		if(handler == null) return request.error("Unknown request: "+request.code());
 		try {
-			return handler.respond(request);
-		} catch(IOException e) {
+			var response = handler.respond(request);
+			// the requester holds a credit until it is answered
+			if(response == null && !request.oneway()) return request.error("No response");
+			return response;
+		} catch(IOException | RuntimeException e) {
+			// a failed handler still answers, returning the requester's credit
 			return request.error("Remote error: "+e.getMessage());
 		}
 	}
 
+	// streams run off the reader thread since they wait for demand read by it
+	private void processIncomingStream(Message request, StreamHandler handler) {
+		var uid = request.uid();
+		var stream = new ResponseStream(this, request);
+		streams.put(uid, stream);
+		submit(() -> {
+			try {
+				Message end;
+				try {
+					handler.respond(request, stream);
+					end = request.respond(request.code());
+				} catch(IOException | RuntimeException e) {
+					end = request.error("Remote error: "+e.getMessage());
+				}
+				// sent even if cancelled, it returns the requester's credit
+				write(end);
+			} catch(IOException e) {
+				// closing
+			} finally {
+				streams.remove(uid, stream);
+				completed(true);
+			}
+		});
+	}
+	
+	private void processDemand(Message msg) throws IOException {
+		try {
+			var stream = streams.get(msg.uid());
+			if(stream == null) return;
+			var n = msg.in().readLong();
+			if(n > 0) {
+				stream.demand(n);
+			} else {
+				stream.cancel();
+			}
+		} finally {
+			msg.release();
+		}
+	}
+
 	private void processIncomingRequest(Message request) throws IOException {
 		Message response = respond(request);
+		if(response != request) request.release();
 		// handle null response
-		if(response != null) endpoint.write(response);
+		if(response != null) write(response);
 	}
 
 	private void processIncomingResponse(Message response){
-		var l = filter(response.code(), activeRequests.remove(response.uid));
-		if(l != null) {
-			executor.submit(() -> l.response(response));
+		// whoever removes the pending request owns it - the response or the timeout
+		var pending = activeRequests.remove(response.uid());
+		if(pending == null) {
+			// may end a stream
+			var subscription = subscriptions.remove(response.uid());
+			if(subscription != null) {
+				releaseCredit();
+				subscription.end(response);
+			} else {
+				// the late response to an abandoned request
+				if(abandoned.remove(response.uid()) != null) releaseCredit();
+				response.release();
+			}
+			return;
 		}
+		pending.cancel();
+		pending.finish();
+		var l = filter(response.code(), pending.listeners);
+		if(l == null) {
+			response.release();
+			return;
+		}
+		executor.submit(() -> {
+			try {
+				l.response(response);
+			} finally {
+				response.release();
+			}
+		});
 	}
 
+	// listeners are per request and rarely more than a few, a scan is cheaper than a table
 	private static ResponseListener filter(byte code, ResponseListener[] listeners) {
 		if (listeners == null) return null;
 		for (ResponseListener l : listeners) {
@@ -179,43 +678,194 @@ final class Transponder implements Consumer<ConnectionState> {
 	}
 	
 	private void read() {
-		while(!Thread.currentThread().isInterrupted() && endpoint.isOpen()) {
+		// terminated before the reader started
+		if(!reading.compareAndSet(false, true)) return;
+		readerThread = Thread.currentThread();
+		try {
+			while(!Thread.currentThread().isInterrupted() && endpoint.isOpen()) {
+				try {
+					var messages = endpoint.read(MessageBatch::new);
+					lastActive = System.nanoTime();
+					for(int i = 0; i < messages.size(); i++) process(messages.get(i));
+				} catch(IOException e) {	
+					notify(e);
+					return;
+				}
+			}
+		} finally {
+			endInflater();
+		}
+	}
+	
+	private void endInflater() {
+		var i = inflater;
+		inflater = null;
+		if(i != null) i.end();
+	}
+
+	private void process(Message msg) throws IOException {
+		if(msg.isCompressed()) {
 			try {
-				var msg = endpoint.read(Message::new);
-				var type = msg.type();
-				var valid = type == REQUEST ? true : type == RESPONSE ? activeRequests.containsKey(msg.uid) : false;
-				if(!valid) continue;
-				switch(type){
-				case REQUEST:
+				if(inflater == null) throw new IOException("Compression not negotiated");
+				msg.inflate(inflater);
+			} catch(IOException e) {
+				msg.release();
+				throw e;
+			}
+		}
+		var type = msg.type();
+		var uid = msg.uid();
+		var valid = false;
+		switch(type){
+		case REQUEST:
+		case DEMAND:
+			valid = true;
+			break;
+		case RESPONSE:
+			valid = activeRequests.containsKey(uid) || subscriptions.containsKey(uid) 
+				|| abandoned.containsKey(uid);
+			break;
+		case CHUNK:
+			valid = subscriptions.containsKey(uid);
+			break;
+		case OPEN:
+		case CLOSE:
+			valid = multiplexed;
+			break;
+		}
+		if(!valid) {
+			msg.release();
+			return;
+		}
+		switch(type){
+		case REQUEST:
+			var s = session(msg.channel());
+			if(s == null) {
+				write(msg.error("Unknown channel: "+msg.channel()));
+				return;
+			}
+			// enforce the advertised window on requests holding a credit
+			var counted = !msg.oneway();
+			if(counted && inbound.incrementAndGet() > settings.window) {
+				inbound.decrementAndGet();
+				write(msg.error("Request window exceeded"));
+				return;
+			}
+			var streamHandler = s.streamHandler(msg.code());
+			var dispatcher = s.dispatcher;
+			if(streamHandler != null) {
+				processIncomingStream(msg, streamHandler);
+			} else if(dispatcher == null) {
+				try {
 					processIncomingRequest(msg);
-					break;
-				case RESPONSE:
-					processIncomingResponse(msg);
-					break;
+				} finally {
+					completed(counted);
 				}
-			} catch(IOException e) {	
-				notify(e);
+			} else {
+				dispatcher.dispatch(msg);
+			}
+			break;
+		case RESPONSE:
+			processIncomingResponse(msg);
+			break;
+		case CHUNK:
+			var subscription = subscriptions.get(uid);
+			if(subscription == null) {
+				msg.release();
+			} else {
+				subscription.signal(msg);
+			}
+			break;
+		case DEMAND:
+			processDemand(msg);
+			break;
+		case OPEN:
+			processOpen(msg);
+			break;
+		case CLOSE:
+			msg.release();
+			var closed = channels.remove(msg.channel());
+			if(closed != null) {
+				closed.channelClosed(new IOException("Channel closed"));
+				channelRemoved();
+			}
+			break;
+		}
+	}
+	
+	// opens a channel to a local service, restricted services are authorized
+	// against the peer's entity
+	private void processOpen(Message msg) throws IOException {
+		var c = msg.channel();
+		var id = msg.in().read(ServiceId::new);
+		var service = services == null ? null : services.get(id);
+		if(c < 1 || channels.containsKey(c)) {
+			write(msg.error("Invalid channel: "+c));
+			return;
+		}
+		if(service == null) {
+			write(msg.error("Unknown service: "+id));
+			return;
+		}
+		Entity entity = null;
+		if(service.getScope() == Scope.RESTRICTED) {
+			var authorized = ((Authenticator.PeerAuthenticator)authenticator).authorize(id);
+			if(authorized.isEmpty()) {
+				write(msg.error("Not authorized: "+id));
 				return;
 			}
+			entity = authorized.get();
+		}
+		var s = service.newSession();
+		if(s == null) {
+			write(msg.error("Unknown session: "+id));
+			return;
 		}
+		s.channel = c;
+		s.authorized = entity;
+		channels.put(c, s);
+		s.connected(this);
+		write(msg.respond((byte)0));
+	}
+
+	// called when an incoming request has been processed
+	void completed(boolean counted) {
+		if(counted) inbound.decrementAndGet();
+	}
+
+	// called by the request dispatcher if a response could not be sent
+	void failed(IOException e) {
+		notify(e);
 	}
 
 	private void notify(Exception e){
 		close();
-		if(session != null) session.closed(e);
+		var s = session;
 		session = null;
+		if(s != null) s.closed(e);
+		channels.forEach((c, channel) -> {
+			if(channels.remove(c, channel)) channel.channelClosed(e);
+		});
+	}
+	
+	// called by the registry to make room for a new connection
+	void evicted() {
+		notify(new IOException("Connection evicted"));
 	}
 	
 	 void close() {
-	 	 if(!isOpen());
+		var r = registry;
 		terminate();
-		if (transponders != null ) transponders.remove(this);
+		if(r != null) r.remove(this);
 	}
 
 	void terminate() {
-		// called by close all - can't remove from transponders since we're 
-		// iterating over them
+		// called by the registry when closing all connections
 		if(reader != null) reader.cancel(true);
+		// the reader ends the inflater when it stops
+		if(reading.compareAndSet(false, true)) endInflater();
+		discardOutbound();
+		failPending("Connection closed");
 		if(endpoint != null && endpoint.isOpen()){
 			try {
 				endpoint.close();
@@ -225,6 +875,195 @@ final class Transponder implements Consumer<ConnectionState> {
 		}
 		endpoint = null;
 		executor = null;
-		transponders = null;
+		registry = null;
+		endDeflater();
+		if(peer != null) admin.removePeer(peer, this);
+	}
+	
+	private void failPending(String msg) {
+		backlog.clear();
+		abandoned.forEach((uid, o) -> abandoned.remove(uid));
+		activeRequests.forEach((uid, pending) -> {
+			if(activeRequests.remove(uid, pending)) {
+				pending.cancel();
+				pending.finish();
+				pending.error(msg);
+			}
+		});
+		subscriptions.forEach((uid, subscription) -> {
+			if(subscriptions.remove(uid, subscription)) subscription.signal(new IOException(msg));
+		});
+		streams.forEach((uid, stream) -> stream.cancel());
+	}
+	
+	// correlation entry for an outstanding request, expires if unanswered
+	private final class PendingRequest extends TimerWheel.Timeout {
+		private static final int NONE = 0;
+		private static final int HELD = 1;
+		private static final int DONE = 2;
+		
+		final long uid;
+		final Message request;
+		final ResponseListener[] listeners;
+		// whether this request holds one of the peer's credits
+		volatile int credit;
+		
+		PendingRequest(Message request, ResponseListener[] listeners) {
+			this.uid = request.uid();
+			this.request = request;
+			this.listeners = listeners;
+		}
+		
+		@Override
+		protected void expired() {
+			// the peer counts the request until it answers - registered first so a 
+			// response racing the timeout still returns the credit
+			var registered = isHeld();
+			if(registered) abandoned.put(uid, this);
+			if(!activeRequests.remove(uid, this)) {
+				if(registered) abandoned.remove(uid, this);
+				return;
+			}
+			if(!isHeld()) backlog.remove(this);
+			if(CREDIT.getAndSet(this, DONE) == HELD) {
+				// taken from the backlog while expiring
+				if(!registered) abandoned.put(uid, this);
+			} else if(registered) {
+				abandoned.remove(uid, this);
+			}
+			admin.expired();
+			admin.executor.submit(() -> error("Request timed out"));
+		}
+		
+		// takes a credit, fails if the request has already finished
+		boolean hold() {
+			return CREDIT.compareAndSet(this, NONE, HELD);
+		}
+		
+		boolean isHeld() {return credit == HELD;}
+		
+		// returns the credit, if held, once the request has been answered or the 
+		// connection fails
+		void finish() {
+			if(CREDIT.getAndSet(this, DONE) == HELD) releaseCredit();
+		}
+		
+		void error(String msg) {
+			for(ResponseListener l : listeners) l.error(msg);
+		}
+	}
+	
+	// delivers a streamed response to its subscriber in order, one signal at a time
+	private final class StreamSubscription implements Flow.Subscription {
+		final long uid;
+		final Flow.Subscriber<? super Message> subscriber;
+		// chunks, then COMPLETE or an exception
+		private final ConcurrentLinkedQueue<Object> signals = new ConcurrentLinkedQueue<>();
+		// held until onSubscribe has returned so no signal overtakes it
+		private final AtomicBoolean draining = new AtomicBoolean(true);
+		private volatile boolean done;
+		
+		StreamSubscription(long uid, Flow.Subscriber<? super Message> subscriber) {
+			this.uid = uid;
+			this.subscriber = subscriber;
+		}
+		
+		@Override
+		public void request(long n) {
+			if(done) return;
+			if(n <= 0) {
+				abandon();
+				signal(new IllegalArgumentException("Non-positive request: "+n));
+				return;
+			}
+			try {
+				write(Message.demand(uid, n));
+			} catch(IOException e) {
+				if(subscriptions.remove(uid, this)) {
+					releaseCredit();
+					signal(e);
+				}
+			}
+		}
+		
+		@Override
+		public void cancel() {
+			done = true;
+			abandon();
+		}
+		
+		// stops the stream at the responder
+		private void abandon() {
+			// the credit returns with the response ending the stream
+			abandoned.put(uid, this);
+			if(!subscriptions.remove(uid, this)) {
+				abandoned.remove(uid, this);
+				return;
+			}
+			try {
+				write(Message.demand(uid, 0));
+			} catch(IOException e) {
+				// closing
+			}
+		}
+		
+		// called with the response ending the stream
+		void end(Message response) {
+			try {
+				if(response.status() == ERROR) {
+					signal(new IOException("Remote Exception: "+response.in().readUTF()));
+				} else {
+					signal(COMPLETE);
+				}
+			} catch(IOException e) {
+				signal(e);
+			} finally {
+				response.release();
+			}
+		}
+		
+		void subscribed() {
+			draining.set(false);
+			if(!signals.isEmpty() && draining.compareAndSet(false, true)) admin.executor.submit(this::drain);
+		}
+		
+		void signal(Object o) {
+			signals.add(o);
+			if(draining.compareAndSet(false, true)) admin.executor.submit(this::drain);
+		}
+		
+		private void drain() {
+			while(true) {
+				Object o;
+				while((o = signals.poll()) != null) deliver(o);
+				draining.set(false);
+				// a signal may have been queued after the last poll
+				if(signals.isEmpty() || !draining.compareAndSet(false, true)) return;
+			}
+		}
+		
+		private void deliver(Object o) {
+			if(o instanceof Message) {
+				var chunk = (Message)o;
+				try {
+					if(!done) subscriber.onNext(chunk);
+				} catch(Throwable t) {
+					// the subscriber failed - stop the stream and tell it why
+					cancel();
+					try {
+						subscriber.onError(t);
+					} catch(Throwable e) {}
+				} finally {
+					chunk.release();
+				}
+			} else if(!done) {
+				done = true;
+				if(o == COMPLETE) {
+					subscriber.onComplete();
+				} else {
+					subscriber.onError((Throwable)o);
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,70 @@
+package rs.igram.kiribi.service.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Pool of heap byte buffers in power of two size classes from 256 bytes to 64k.
+// Buffers larger than the largest class are allocated and discarded as needed.
+// Each size class is a small lock-free array of slots - acquire and recycle claim
+// a slot with a CAS, starting from a per thread offset to spread contention.
+public final class BufferPool {
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_SHIFT = 16;
+	private static final int SLOTS = 32;
+	private static final AtomicReferenceArray<ByteBuffer>[] pools;
+
+	static {
+		@SuppressWarnings("unchecked")
+		var p = (AtomicReferenceArray<ByteBuffer>[])new AtomicReferenceArray<?>[MAX_SHIFT - MIN_SHIFT + 1];
+		for(int i = 0; i < p.length; i++) p[i] = new AtomicReferenceArray<>(SLOTS);
+		pools = p;
+	}
+
+	private BufferPool() {}
+
+	// returns a cleared buffer with at least the given capacity
+	public static PooledBuffer acquire(int capacity) {
+		return new PooledBuffer(allocate(capacity));
+	}
+
+	static ByteBuffer allocate(int capacity) {
+		var c = sizeClass(capacity);
+		if(c < 0) return ByteBuffer.allocate(capacity);
+		var pool = pools[c];
+		var start = start();
+		for(int n = 0; n < SLOTS; n++) {
+			var i = (start + n) & (SLOTS - 1);
+			var b = pool.get(i);
+			if(b != null && pool.compareAndSet(i, b, null)) {
+				b.clear();
+				return b;
+			}
+		}
+		return ByteBuffer.allocate(1 << (c + MIN_SHIFT));
+	}
+
+	static void recycle(ByteBuffer b) {
+		var c = sizeClass(b.capacity());
+		// only exact size class buffers are pooled
+		if(c < 0 || b.capacity() != 1 << (c + MIN_SHIFT)) return;
+		var pool = pools[c];
+		var start = start();
+		for(int n = 0; n < SLOTS; n++) {
+			var i = (start + n) & (SLOTS - 1);
+			if(pool.get(i) == null && pool.compareAndSet(i, null, b)) return;
+		}
+		// pool full - let it go
+	}
+
+	private static int sizeClass(int capacity) {
+		if(capacity > 1 << MAX_SHIFT) return -1;
+		var shift = MIN_SHIFT;
+		while(1 << shift < capacity) shift++;
+		return shift - MIN_SHIFT;
+	}
+
+	private static int start() {
+		var h = (int)Thread.currentThread().getId() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
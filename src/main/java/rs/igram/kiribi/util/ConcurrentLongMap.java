@@ -0,0 +1,278 @@
+package rs.igram.kiribi.service.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Open addressing map keyed by primitive longs. Keys and values live in parallel
+// atomic arrays so get/put/remove never box the key or allocate an entry.
+//
+// A key slot is claimed once with a CAS and never released - removing a key only
+// nulls its value, leaving a tombstone the same key can reuse. When too many slots
+// have been claimed the table is migrated to a fresh one sized for the live entries,
+// which drops the tombstones. Migration is cooperative: writers finding it in
+// progress copy strides of slots before carrying on, and a copied slot is marked
+// MOVED, sending readers and writers of its key to the next table. No thread waits
+// for another to finish copying.
+public class ConcurrentLongMap<V> {
+	private static final long EMPTY = 0l;
+	private static final Object MOVED = new Object();
+	// expected value matching any current value
+	private static final Object ANY = new Object();
+	private static final int MIN_CAPACITY = 16;
+	// slots copied by a thread at a time while migrating
+	private static final int STRIDE = 64;
+
+	private final AtomicReference<Object> zero = new AtomicReference<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicReference<Table> table;
+
+	public ConcurrentLongMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public ConcurrentLongMap(int capacity) {
+		table = new AtomicReference<>(new Table(capacity(capacity)));
+	}
+
+	public int size() {return size.get();}
+
+	public boolean isEmpty() {return size.get() == 0;}
+
+	public boolean containsKey(long key) {return get(key) != null;}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		if(key == EMPTY) return (V)zero.get();
+		return (V)load(table.get(), key);
+	}
+
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if(value == null) throw new NullPointerException();
+		if(key == EMPTY) {
+			var old = (V)zero.getAndSet(value);
+			if(old == null) size.incrementAndGet();
+			return old;
+		}
+		var old = (V)update(table.get(), key, ANY, value);
+		if(old == null) size.incrementAndGet();
+		return old;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		if(key == EMPTY) {
+			var old = (V)zero.getAndSet(null);
+			if(old != null) size.decrementAndGet();
+			return old;
+		}
+		var old = (V)update(table.get(), key, ANY, null);
+		if(old != null) size.decrementAndGet();
+		return old;
+	}
+
+	// removes the mapping only if the key is currently mapped to the given value
+	public boolean remove(long key, V value) {
+		if(key == EMPTY) {
+			if(value == null || !zero.compareAndSet(value, null)) return false;
+			size.decrementAndGet();
+			return true;
+		}
+		if(value == null || update(table.get(), key, value, null) != value) return false;
+		size.decrementAndGet();
+		return true;
+	}
+
+	// visits live entries - weakly consistent with concurrent updates
+	@SuppressWarnings("unchecked")
+	public void forEach(LongEntryConsumer<V> consumer) {
+		var z = zero.get();
+		if(z != null) consumer.accept(EMPTY, (V)z);
+		// keys put while migrating may only be in the next table - those met in a
+		// table are not visited again in the next
+		var t = table.get();
+		var seen = t.next.get() == null ? null : new ConcurrentLongMap<Boolean>();
+		for(; t != null; t = seen == null ? null : t.next.get()) {
+			for(int i = 0; i < t.capacity; i++) {
+				var k = t.keys.get(i);
+				if(k == EMPTY || seen != null && seen.put(k, Boolean.TRUE) != null) continue;
+				var o = t.vals.get(i);
+				if(o == MOVED) o = load(t.next.get(), k);
+				if(o != null) consumer.accept(k, (V)o);
+			}
+		}
+	}
+
+	// the value of the key in t or the tables it was migrated to
+	private static Object load(Table t, long key) {
+		for(; t != null; t = t.next.get()) {
+			var i = t.find(key);
+			if(i >= 0) {
+				var o = t.vals.get(i);
+				if(o != MOVED) return o;
+			}
+		}
+		return null;
+	}
+
+	// sets the value of the key if expect is ANY or the current value, a null value
+	// removing it - returns the previous value
+	private Object update(Table t, long key, Object expect, Object value) {
+		var i = hash(key) & t.mask;
+		while(true) {
+			var k = t.keys.get(i);
+			if(k == key) {
+				var o = t.vals.get(i);
+				if(o == MOVED) {
+					t = next(t);
+					i = hash(key) & t.mask;
+				} else if(expect != ANY && o != expect || o == null && value == null) {
+					return o;
+				} else if(t.vals.compareAndSet(i, o, value)) {
+					return o;
+				}
+				// lost a race - re-examine the slot
+			} else if(k == EMPTY) {
+				// the key is not in t
+				var n = t.next.get();
+				if(n == null) {
+					if(value == null) return null;
+					// re-examine the slot once claimed, by this thread or another
+					if(t.claim(i, key)) continue;
+					n = migrate(t);
+				}
+				// a key put in the next table must not be claimed in t meanwhile -
+				// seal the end of its probe unless claimed first
+				if(value != null && !(seal(t, i) && t.keys.get(i) == EMPTY)) continue;
+				t = next(t);
+				i = hash(key) & t.mask;
+			} else {
+				i = (i + 1) & t.mask;
+			}
+		}
+	}
+
+	// starts migrating t unless already started, returns the table migrated to
+	private Table migrate(Table t) {
+		var n = t.next.get();
+		if(n != null) return n;
+		// sized for the live entries, dropping the tombstones
+		n = new Table(capacity(Math.max(MIN_CAPACITY, size.get() * 4)));
+		return t.next.compareAndSet(null, n) ? n : t.next.get();
+	}
+
+	// helps migrating t, returns the table migrated to
+	private Table next(Table t) {
+		var n = t.next.get();
+		while(t.transfer.get() < t.capacity) {
+			var start = t.transfer.getAndAdd(STRIDE);
+			if(start >= t.capacity) break;
+			var end = Math.min(start + STRIDE, t.capacity);
+			for(int i = start; i < end; i++) move(t, n, i);
+			if(t.moved.addAndGet(end - start) == t.capacity) advance();
+		}
+		return n;
+	}
+
+	// copies the entry in the slot to n and marks the slot MOVED - the key is only
+	// written in n once MOVED, until then the copy follows the slot
+	private void move(Table t, Table n, int i) {
+		var copied = false;
+		while(true) {
+			var o = t.vals.get(i);
+			if(o == MOVED) return;
+			if(o == null) {
+				if(copied) update(n, t.keys.get(i), ANY, null);
+				copied = false;
+				if(t.vals.compareAndSet(i, null, MOVED)) return;
+			} else {
+				update(n, t.keys.get(i), ANY, o);
+				copied = true;
+				if(t.vals.compareAndSet(i, o, MOVED)) return;
+			}
+		}
+	}
+
+	// replaces migrated tables, including later ones whose migration completed first
+	private void advance() {
+		var t = table.get();
+		while(t.next.get() != null && t.moved.get() == t.capacity) {
+			table.compareAndSet(t, t.next.get());
+			t = table.get();
+		}
+	}
+
+	// marks an empty slot MOVED so no key can be put in it, returns false if it
+	// holds a value meanwhile
+	private static boolean seal(Table t, int i) {
+		while(true) {
+			var o = t.vals.get(i);
+			if(o == MOVED) return true;
+			if(o != null) return false;
+			if(t.vals.compareAndSet(i, null, MOVED)) return true;
+		}
+	}
+
+	private static int capacity(int n) {
+		var c = MIN_CAPACITY;
+		while(c < n) c <<= 1;
+		return c;
+	}
+
+	private static int hash(long key) {
+		var h = key * 0x9E3779B97F4A7C15l;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private static final class Table {
+		final int capacity;
+		final int mask;
+		final int threshold;
+		final AtomicLongArray keys;
+		final AtomicReferenceArray<Object> vals;
+		final AtomicInteger claimed = new AtomicInteger();
+		// set once migration starts
+		final AtomicReference<Table> next = new AtomicReference<>();
+		// the first slot not yet taken by a migrating thread, and the slots moved
+		final AtomicInteger transfer = new AtomicInteger();
+		final AtomicInteger moved = new AtomicInteger();
+
+		Table(int capacity) {
+			this.capacity = capacity;
+			mask = capacity - 1;
+			threshold = capacity - (capacity >>> 2);
+			keys = new AtomicLongArray(capacity);
+			vals = new AtomicReferenceArray<>(capacity);
+		}
+
+		// returns the slot of the key, or -(slot + 1) of the empty slot ending the probe
+		int find(long key) {
+			var i = hash(key) & mask;
+			while(true) {
+				var k = keys.get(i);
+				if(k == key) return i;
+				if(k == EMPTY) return -i - 1;
+				i = (i + 1) & mask;
+			}
+		}
+
+		// claims the empty slot for the key, returns false if the table is too full
+		boolean claim(int i, long key) {
+			// reserve before claiming so the table can never fill up
+			if(claimed.incrementAndGet() > threshold) {
+				claimed.decrementAndGet();
+				return false;
+			}
+			// another thread claimed the slot first - release
+			if(!keys.compareAndSet(i, EMPTY, key)) claimed.decrementAndGet();
+			return true;
+		}
+	}
+
+	@FunctionalInterface
+	public static interface LongEntryConsumer<V> {
+		void accept(long key, V value);
+	}
+}
@@ -0,0 +1,112 @@
+package rs.igram.kiribi.service.util;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// Reference counted handle to a buffer from the BufferPool. The buffer returns to
+// the pool when the last reference is released, after which it must not be used.
+// Releasing it more often than it was retained does nothing, so the buffer can't
+// be handed out twice.
+// Writing through the output stream grows the buffer by swapping in a larger one.
+public final class PooledBuffer {
+	private static final AtomicIntegerFieldUpdater<PooledBuffer> REFS =
+		AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "refs");
+
+	private ByteBuffer buffer;
+	private volatile int refs = 1;
+
+	PooledBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	public ByteBuffer buffer() {return buffer;}
+
+	public byte[] array() {return buffer.array();}
+
+	public void retain() {
+		while(true) {
+			var r = refs;
+			if(r <= 0) throw new IllegalStateException("Buffer released");
+			if(REFS.compareAndSet(this, r, r + 1)) return;
+		}
+	}
+
+	// returns true if this released the last reference
+	public boolean release() {
+		while(true) {
+			var r = refs;
+			if(r <= 0) return false;
+			if(REFS.compareAndSet(this, r, r - 1)) {
+				if(r > 1) return false;
+				var b = buffer;
+				buffer = null;
+				BufferPool.recycle(b);
+				return true;
+			}
+		}
+	}
+
+	public boolean isShared() {return refs > 1;}
+
+	// makes room for n more bytes after the current position
+	public void ensureWritable(int n) {
+		if(buffer.remaining() >= n) return;
+		var capacity = buffer.capacity();
+		while(capacity - buffer.position() < n) capacity <<= 1;
+		var b = BufferPool.allocate(capacity);
+		buffer.flip();
+		b.put(buffer);
+		BufferPool.recycle(buffer);
+		buffer = b;
+	}
+
+	// appends to the buffer from its current position
+	public OutputStream outputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) {
+				ensureWritable(1);
+				buffer.put((byte)b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				ensureWritable(len);
+				buffer.put(b, off, len);
+			}
+		};
+	}
+
+	// reads the bytes between the buffer's position and limit
+	public InputStream inputStream() {
+		return new InputStream() {
+			@Override
+			public int read() {
+				return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if(len == 0) return 0;
+				if(!buffer.hasRemaining()) return -1;
+				len = Math.min(len, buffer.remaining());
+				buffer.get(b, off, len);
+				return len;
+			}
+
+			@Override
+			public long skip(long n) {
+				var k = (int)Math.min(n, buffer.remaining());
+				buffer.position(buffer.position() + k);
+				return k;
+			}
+
+			@Override
+			public int available() {
+				return buffer.remaining();
+			}
+		};
+	}
+}
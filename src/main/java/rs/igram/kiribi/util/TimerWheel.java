@@ -0,0 +1,204 @@
+package rs.igram.kiribi.service.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// Hashed timer wheel. Timeouts are hashed into buckets by deadline and a single
+// daemon thread expires one bucket per tick, so scheduling and cancelling are O(1)
+// regardless of how many timeouts are pending. Expiry is accurate to one tick.
+//
+// Cancelled timeouts are unlinked from their bucket right away, so they aren't
+// kept reachable until the wheel next visits it.
+public class TimerWheel {
+	private final long tick;
+	// guarded by this - buckets are filled and expired by the worker but
+	// cancelled timeouts are unlinked by the cancelling thread
+	private final Timeout[] buckets;
+	private final int mask;
+	private int size;
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final String name;
+	private volatile Thread worker;
+	private volatile boolean shutdown;
+	private long start;
+	private long ticks;
+
+	public TimerWheel(String name) {
+		this(name, 100, TimeUnit.MILLISECONDS, 512);
+	}
+
+	public TimerWheel(String name, long tick, TimeUnit unit, int size) {
+		if(tick <= 0) throw new IllegalArgumentException("tick must be positive");
+		var n = 1;
+		while(n < size) n <<= 1;
+		this.name = name;
+		this.tick = unit.toNanos(tick);
+		buckets = new Timeout[n];
+		mask = n - 1;
+	}
+
+	public void schedule(Timeout timeout, long delay, TimeUnit unit) {
+		if(shutdown) throw new IllegalStateException("Timer wheel shut down");
+		if(!Timeout.STATE.compareAndSet(timeout, Timeout.NEW, Timeout.PENDING)) {
+			throw new IllegalStateException("Timeout already scheduled");
+		}
+		var now = System.nanoTime();
+		var deadline = now + Math.max(0, unit.toNanos(delay));
+		// saturate rather than wrap around to a deadline in the past
+		timeout.deadline = deadline < now ? Long.MAX_VALUE : deadline;
+		timeout.wheel = this;
+		pending.add(timeout);
+		if(worker == null) start();
+	}
+
+	public void shutdown() {
+		shutdown = true;
+		var t = worker;
+		if(t != null) t.interrupt();
+	}
+
+	private synchronized void start() {
+		if(worker != null || shutdown) return;
+		var t = new Thread(this::run, name);
+		t.setDaemon(true);
+		worker = t;
+		t.start();
+	}
+
+	private void run() {
+		start = System.nanoTime();
+		while(!shutdown) {
+			var deadline = start + (ticks + 1) * tick;
+			var sleep = deadline - System.nanoTime();
+			if(sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch(InterruptedException e) {
+					return;
+				}
+			}
+			Timeout expired;
+			synchronized(this) {
+				transfer();
+				expired = expire((int)(ticks & mask));
+			}
+			ticks++;
+			// run outside the lock so expired() may cancel or schedule
+			for(var t = expired; t != null; ) {
+				var next = t.next;
+				t.next = null;
+				try {
+					t.expired();
+				} catch(Throwable e) {
+					// don't let a misbehaving task kill the wheel
+				}
+				t = next;
+			}
+		}
+	}
+	
+	// number of timeouts in the buckets
+	synchronized int size() {
+		return size;
+	}
+	
+	private synchronized void remove(Timeout t) {
+		if(t.bucket >= 0) unlink(t.bucket, t);
+	}
+
+	// moves newly scheduled timeouts into their buckets
+	private void transfer() {
+		Timeout t;
+		while((t = pending.poll()) != null) {
+			if(t.state != Timeout.PENDING) continue;
+			var due = Math.max(ticks, due(t.deadline));
+			t.rounds = (due - ticks) / buckets.length;
+			var i = (int)(due & mask);
+			t.next = buckets[i];
+			if(t.next != null) t.next.prev = t;
+			t.prev = null;
+			t.bucket = i;
+			buckets[i] = t;
+			size++;
+		}
+	}
+	
+	// ticks from the start of the wheel to the deadline, rounded up
+	private long due(long deadline) {
+		var elapsed = deadline - start;
+		// a saturated deadline overflows if the wheel started at a negative time
+		if(elapsed < 0 && deadline > start) elapsed = Long.MAX_VALUE;
+		var due = elapsed / tick;
+		return due * tick < elapsed ? due + 1 : due;
+	}
+
+	// unlinks the due timeouts of the bucket, returning them chained by next
+	private Timeout expire(int bucket) {
+		Timeout expired = null;
+		var t = buckets[bucket];
+		while(t != null) {
+			var next = t.next;
+			if(t.state != Timeout.PENDING) {
+				unlink(bucket, t);
+			} else if(t.rounds <= 0) {
+				unlink(bucket, t);
+				if(Timeout.STATE.compareAndSet(t, Timeout.PENDING, Timeout.EXPIRED)) {
+					t.next = expired;
+					expired = t;
+				}
+			} else {
+				t.rounds--;
+			}
+			t = next;
+		}
+		return expired;
+	}
+
+	private void unlink(int bucket, Timeout t) {
+		if(t.prev == null) {
+			buckets[bucket] = t.next;
+		} else {
+			t.prev.next = t.next;
+		}
+		if(t.next != null) t.next.prev = t.prev;
+		t.next = null;
+		t.prev = null;
+		t.bucket = -1;
+		size--;
+	}
+
+	// extend to receive expiry notifications - expired() runs on the wheel
+	// thread so it should hand off anything but trivial work
+	public static abstract class Timeout {
+		static final int NEW = 0;
+		static final int PENDING = 1;
+		static final int CANCELLED = 2;
+		static final int EXPIRED = 3;
+		static final AtomicIntegerFieldUpdater<Timeout> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private volatile int state;
+		private long deadline;
+		private long rounds;
+		private Timeout next;
+		private Timeout prev;
+		// guarded by the wheel, -1 unless linked into a bucket
+		private int bucket = -1;
+		private volatile TimerWheel wheel;
+
+		protected abstract void expired();
+
+		// returns true if the timeout was cancelled before it expired
+		public boolean cancel() {
+			if(!STATE.compareAndSet(this, PENDING, CANCELLED)) return false;
+			var w = wheel;
+			if(w != null) w.remove(this);
+			return true;
+		}
+
+		public boolean isExpired() {return state == EXPIRED;}
+
+		public boolean isCancelled() {return state == CANCELLED;}
+	}
+}
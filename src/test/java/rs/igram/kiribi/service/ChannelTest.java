@@ -0,0 +1,288 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.net.Address;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class ChannelTest {
+	static final byte CODE = 0x01;
+	static final byte OPEN = 4;
+	static final byte CLOSE = 5;
+	static final ServiceId ID = TestConnection.ADDRESS.id();
+
+	@Test
+	public void testOpen() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = new TestSession();
+			var c = accept(admin, session);
+			c.send(open(1, 1, ID));
+			var opened = c.receive();
+			assertEquals(1, opened.uid());
+			assertEquals(Message.OK, opened.status());
+			assertTrue(session.isOpen());
+
+			c.send(request(2, 1));
+			var response = c.receive();
+			assertEquals(2, response.uid());
+			assertEquals(1, response.channel());
+			assertEquals(Message.OK, response.status());
+
+			// channel 0 has no session on a peer connection
+			c.send(request(3, 0));
+			assertEquals("Unknown channel: 0", c.receive().in().readUTF());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testOpenFailures() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var c = accept(admin, new TestSession());
+			c.send(open(1, 1, ServiceId.parse(2)));
+			assertEquals("Unknown service: "+ServiceId.parse(2), error(c.receive()));
+
+			c.send(open(2, 0, ID));
+			assertEquals("Invalid channel: 0", error(c.receive()));
+
+			c.send(open(3, 1, ID));
+			assertEquals(Message.OK, c.receive().status());
+			c.send(open(4, 1, ID));
+			assertEquals("Invalid channel: 1", error(c.receive()));
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testRemoteClose() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = new TestSession();
+			var c = accept(admin, session);
+			c.send(open(1, 1, ID));
+			assertEquals(Message.OK, c.receive().status());
+
+			c.send(Message.close(1));
+			var e = session.closed.get(5, TimeUnit.SECONDS);
+			assertEquals("Channel closed", e.getMessage());
+			assertFalse(session.isOpen());
+
+			c.send(request(2, 1));
+			assertEquals("Unknown channel: 1", error(c.receive()));
+			assertTrue(c.isOpen());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testConnectionClosed() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var sessions = new TestSession[3];
+			var services = new HashMap<ServiceId, Service>();
+			for(int i = 0; i < sessions.length; i++) {
+				var s = sessions[i] = new TestSession(ServiceId.parse(i + 1));
+				services.put(s.id, service(s));
+			}
+			var c = new TestConnection(admin);
+			c.transponder.multiplexed = true;
+			c.transponder.services = services;
+			c.start(null, 16);
+			for(int i = 0; i < sessions.length; i++) {
+				c.send(open(i + 1, i + 1, sessions[i].id));
+				assertEquals(Message.OK, c.receive().status());
+			}
+
+			c.transponder.evicted();
+			for(var s : sessions) assertEquals("Connection evicted", s.closed.get(5, TimeUnit.SECONDS).getMessage());
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testClientOpen() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var c = new TestConnection(admin);
+			c.transponder.multiplexed = true;
+			c.start(null, 16);
+
+			var session = new TestSession();
+			var opening = open(c.transponder, session);
+			var open = c.receive();
+			assertEquals(OPEN, open.type());
+			assertEquals(1, open.channel());
+			assertEquals(ID, open.in().read(ServiceId::new));
+			c.send(open.respond((byte)0));
+			opening.get(5, TimeUnit.SECONDS);
+			assertTrue(session.isOpen());
+
+			// the connection stays open for other sessions
+			session.close();
+			var close = c.receive();
+			assertEquals(CLOSE, close.type());
+			assertEquals(1, close.channel());
+			assertTrue(c.isOpen());
+
+			var refused = new TestSession();
+			var refusing = open(c.transponder, refused);
+			open = c.receive();
+			assertEquals(2, open.channel());
+			c.send(open.error("Not authorized: "+ID));
+			var e = assertThrows(ExecutionException.class, () -> refusing.get(5, TimeUnit.SECONDS));
+			assertEquals("Not authorized: "+ID, e.getCause().getCause().getMessage());
+			assertFalse(refused.isOpen());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testIdlePeerClosed() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			admin.setPeerIdleTimeout(100, TimeUnit.MILLISECONDS);
+			var c = new TestConnection(admin);
+			c.transponder.multiplexed = true;
+			c.transponder.peer = Address.NULL;
+			c.start(null, 16);
+
+			var session = new TestSession();
+			var opening = open(c.transponder, session);
+			var open = c.receive();
+			c.send(open.respond((byte)0));
+			opening.get(5, TimeUnit.SECONDS);
+			assertEquals(1, session.channel);
+
+			// closed once its last channel has been closed for the idle timeout
+			session.close();
+			assertEquals(0, session.channel);
+			assertEquals(CLOSE, c.receive().type());
+			var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while(c.isOpen()) {
+				assertTrue(System.nanoTime() - deadline < 0, "timed out");
+				Thread.sleep(10);
+			}
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	// a peer connection offering the session's service
+	private static TestConnection accept(ServiceAdmin admin, TestSession session) {
+		var c = new TestConnection(admin);
+		c.transponder.multiplexed = true;
+		c.transponder.services = Map.of(session.id, service(session));
+		return c.start(null, 16);
+	}
+
+	private static Service service(Session session) {
+		return new Service() {
+			@Override
+			public Descriptor getDescriptor() {return null;}
+
+			@Override
+			public Scope getScope() {return Scope.PUBLIC;}
+
+			@Override
+			public Session newSession() {return session;}
+		};
+	}
+
+	private static CompletableFuture<Void> open(Transponder t, Session session) {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				t.open(session);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	private static Message open(long uid, int channel, ServiceId id) {
+		var open = Message.open(channel, id);
+		open.uid(uid);
+		return open;
+	}
+
+	private static Message request(long uid, int channel) {
+		var request = TestConnection.request(CODE, uid);
+		request.channel(channel);
+		return request;
+	}
+
+	private static String error(Message msg) throws IOException {
+		assertEquals(Message.ERROR, msg.status());
+		return msg.in().readUTF();
+	}
+
+	static class TestSession extends Session {
+		final CompletableFuture<Exception> closed = new CompletableFuture<>();
+
+		TestSession() {
+			this(ID);
+		}
+
+		TestSession(ServiceId id) {
+			super(Scope.PUBLIC, new ServiceAddress(id, TestConnection.ADDRESS.host()));
+		}
+
+		@Override
+		protected void configure() {
+			handle(CODE, request -> request.respond(CODE));
+		}
+
+		@Override
+		protected void closed(Exception e) {
+			closed.complete(e);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.crypto.KeyPairGenerator;
+import rs.igram.kiribi.net.Address;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class ConnectionRegistryTest {
+
+	@Test
+	public void testLimit() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var registry = new ConnectionRegistry();
+			registry.setLimits(2, 64, false);
+			var c = connections(admin, 3);
+			assertTrue(registry.admit(c[0].transponder, null));
+			assertTrue(registry.admit(c[1].transponder, null));
+			assertFalse(registry.admit(c[2].transponder, null));
+			assertTrue(c[0].isOpen());
+
+			// a closed connection makes room
+			registry.remove(c[0].transponder);
+			assertTrue(registry.admit(c[2].transponder, null));
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testPeerLimit() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var registry = new ConnectionRegistry();
+			registry.setLimits(10, 1, false);
+			var a = address();
+			var c = connections(admin, 4);
+			assertTrue(registry.admit(c[0].transponder, a));
+			assertFalse(registry.admit(c[1].transponder, a));
+			// other peers and clients of public services are unaffected
+			assertTrue(registry.admit(c[2].transponder, address()));
+			assertTrue(registry.admit(c[3].transponder, null));
+
+			registry.remove(c[0].transponder);
+			assertTrue(registry.admit(c[1].transponder, a));
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var registry = new ConnectionRegistry();
+			registry.setLimits(2, 64, true);
+			var c = connections(admin, 5);
+			assertTrue(registry.admit(c[0].transponder, null));
+			assertTrue(registry.admit(c[1].transponder, null));
+			// the least recently active connection makes room
+			assertTrue(registry.admit(c[2].transponder, null));
+			assertFalse(c[0].isOpen());
+			assertTrue(c[1].isOpen());
+
+			// per peer, only the peer's connections compete
+			registry.setLimits(10, 1, true);
+			var a = address();
+			assertTrue(registry.admit(c[3].transponder, a));
+			assertTrue(registry.admit(c[4].transponder, a));
+			assertFalse(c[3].isOpen());
+			assertTrue(c[1].isOpen());
+			assertTrue(c[2].isOpen());
+			assertTrue(c[4].isOpen());
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	// connections in order of their last activity
+	private static TestConnection[] connections(ServiceAdmin admin, int n) throws InterruptedException {
+		var c = new TestConnection[n];
+		for(int i = 0; i < n; i++) {
+			c[i] = new TestConnection(admin);
+			Thread.sleep(1);
+		}
+		return c;
+	}
+
+	private static Address address() {
+		return new Address(KeyPairGenerator.generateKeyPair().getPublic());
+	}
+}
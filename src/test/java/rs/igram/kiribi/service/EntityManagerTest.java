@@ -30,11 +30,16 @@ import java.io.PipedOutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -42,7 +47,10 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import rs.igram.kiribi.crypto.KeyPairGenerator;
 import rs.igram.kiribi.io.*;
+import rs.igram.kiribi.net.Address;
+import rs.igram.kiribi.service.util.CompletionListener;
 
 /**
  * 
@@ -77,4 +85,145 @@ public class EntityManagerTest extends ServiceTest {
    	   assertTrue(alice.available(ID));
    	   shutdown();
    } 
-}
\ No newline at end of file
+
+   @Test
+   public void testLookup() throws IOException {
+   	   var admin = TestConnection.admin();
+   	   try {
+   	   	   var first = entity(address());
+   	   	   var mgr = new EntityManager(new ArrayList<>(List.of(first)), admin);
+   	   	   assertEquals(Optional.of(first), mgr.entity(first.address()));
+   	   	   assertEquals(Optional.empty(), mgr.entity(address()));
+   	   	   assertEquals(Optional.empty(), mgr.entity(null));
+
+   	   	   var second = entity(address());
+   	   	   mgr.add(second);
+   	   	   assertSame(second, mgr.entity(second.address()).get());
+   	   	   assertEquals(List.of(first, second), mgr.entities());
+
+   	   	   // authorization checks go through the index
+   	   	   assertTrue(mgr.authenticate(second.address(), ServiceId.ENTITY).isPresent());
+   	   	   assertFalse(mgr.authenticate(second.address(), ID).isPresent());
+   	   	   second.set(second.address().toString(), "", List.of(ID), List.of());
+   	   	   mgr.update(second);
+   	   	   assertTrue(mgr.authenticate(second.address(), ID).isPresent());
+
+   	   	   // another entity with the same address takes over when one is deleted
+   	   	   var shared = entity(second.address());
+   	   	   mgr.add(shared);
+   	   	   mgr.delete(second);
+   	   	   assertSame(shared, mgr.entity(second.address()).get());
+   	   	   mgr.delete(shared);
+   	   	   assertEquals(Optional.empty(), mgr.entity(second.address()));
+   	   	   mgr.delete(first);
+   	   	   assertTrue(mgr.entities().isEmpty());
+   	   } finally {
+   	   	   admin.shutdown();
+   	   }
+   }
+
+   @Test
+   public void testEvictionInFlight() throws Exception {
+   	   var admin = TestConnection.admin();
+   	   var answering = new CountDownLatch(1);
+   	   var release = new CountDownLatch(1);
+   	   try {
+   	   	   var peer = entity(address());
+   	   	   // the entity manager created with the admin, it serves exchanges
+   	   	   var mgr = admin.entityManager(null);
+   	   	   var service = (EntityManager.ExchangeService)admin.activeServices().stream()
+   	   	   	   .filter(s -> ServiceId.ENTITY.equals(s.id()))
+   	   	   	   .findAny()
+   	   	   	   .get();
+   	   	   // holds the exchange open until released
+   	   	   service.handler = new CompletionListener<>() {
+   	   	   	   @Override
+   	   	   	   public void completed(Entity entity) {
+   	   	   	   	   answering.countDown();
+   	   	   	   	   try {
+   	   	   	   	   	   release.await(5, TimeUnit.SECONDS);
+   	   	   	   	   } catch(InterruptedException e) {
+   	   	   	   	   	   Thread.currentThread().interrupt();
+   	   	   	   	   }
+   	   	   	   }
+   	   	   	   
+   	   	   	   @Override
+   	   	   	   public void failed(Throwable t) {}
+   	   	   };
+   	   	   // the server side of an exchange session, as if the peer authenticated
+   	   	   var session = service.newSession();
+   	   	   session.authorized = peer;
+   	   	   var c = new TestConnection(admin).start(session, 16);
+   	   	   var request = TestConnection.request((byte)100, 1);
+   	   	   request.out().write(entity(address()).exchange());
+   	   	   
+   	   	   c.send(request);
+   	   	   assertTrue(answering.await(5, TimeUnit.SECONDS));
+   	   	   mgr.setExchangeSessionLimits(1, TimeUnit.MILLISECONDS, 64);
+   	   	   // past the idle timeout, but the exchange is in progress
+   	   	   Thread.sleep(10);
+   	   	   mgr.evict(true);
+   	   	   assertTrue(c.isOpen());
+   	   	   release.countDown();
+   	   	   assertEquals(1, c.receive().uid());
+   	   	   
+   	   	   // idle once answered
+   	   	   Thread.sleep(10);
+   	   	   mgr.evict(true);
+   	   	   assertFalse(c.isOpen());
+   	   } finally {
+   	   	   release.countDown();
+   	   	   admin.shutdown();
+   	   }
+   }
+
+   @Test
+   public void testExchangeInFull() throws Exception {
+   	   var admin = TestConnection.admin();
+   	   try {
+   	   	   var descriptor = new Descriptor(new ServiceAddress(ID, Address.NULL), "", 0);
+   	   	   var peer = entity(address());
+   	   	   peer.setGranted(List.of(descriptor));
+   	   	   peer.setPending(false);
+   	   	   admin.entityManager(null);
+   	   	   var service = admin.activeServices().stream()
+   	   	   	   .filter(s -> ServiceId.ENTITY.equals(s.id()))
+   	   	   	   .findAny()
+   	   	   	   .get();
+   	   	   var session = service.newSession();
+   	   	   session.authorized = peer;
+   	   	   var c = new TestConnection(admin).start(session, 16);
+
+   	   	   // the requester couldn't apply a delta and now holds none of the services,
+   	   	   // they are sent in full although unchanged
+   	   	   var requester = entity(address());
+   	   	   var request = TestConnection.request((byte)100, 1);
+   	   	   request.out().write(requester.snapshot());
+   	   	   c.send(request);
+   	   	   var in = c.receive().in();
+   	   	   assertTrue(in.readBoolean());
+   	   	   var data = new Entity.ExchangeData(in);
+   	   	   assertFalse(data.isDelta());
+   	   	   assertTrue(requester.exchange(data));
+   	   	   assertEquals(Set.of(descriptor), requester.availableContent());
+
+   	   	   // once held, only the version is acknowledged
+   	   	   request = TestConnection.request((byte)100, 2);
+   	   	   request.out().write(requester.exchange());
+   	   	   c.send(request);
+   	   	   in = c.receive().in();
+   	   	   assertFalse(in.readBoolean());
+   	   	   c.close();
+   	   } finally {
+   	   	   admin.shutdown();
+   	   }
+   }
+
+   private static Entity entity(Address address) {
+   	   return new Entity(false, address.toString(), "");
+   }
+
+   private static Address address() {
+   	   return new Address(KeyPairGenerator.generateKeyPair().getPublic());
+   }
+}
@@ -0,0 +1,189 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.crypto.KeyPairGenerator;
+import rs.igram.kiribi.net.Address;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class EntityStoreTest {
+
+	@Test
+	public void testJournal() throws IOException {
+		var dir = Files.createTempDirectory("entities");
+		try {
+			var store = new EntityStore(dir);
+			assertTrue(store.load().isEmpty());
+			var a = entity("a");
+			var b = entity("b");
+			store.put(a);
+			store.put(b);
+			store.delete(a);
+			b.setName("c");
+			store.put(b);
+			store.close();
+			
+			var loaded = new EntityStore(dir).load();
+			assertEquals(1, loaded.size());
+			assertEquals(b.address(), loaded.get(0).address());
+			assertEquals("c", loaded.get(0).getName());
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		var dir = Files.createTempDirectory("entities");
+		try {
+			var store = new EntityStore(dir);
+			store.load();
+			var entities = new ArrayList<Entity>();
+			for(int i = 0; i < 100; i++) {
+				var e = entity("e"+i);
+				entities.add(e);
+				store.put(e);
+			}
+			store.compact(() -> entities);
+			// only the header of the next generation
+			assertEquals(16, Files.size(dir.resolve("entities.journal")));
+			var e = entity("last");
+			store.put(e);
+			store.close();
+			
+			var loaded = new EntityStore(dir).load();
+			assertEquals(101, loaded.size());
+			assertEquals("e0", loaded.get(0).getName());
+			assertEquals("last", loaded.get(100).getName());
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		var dir = Files.createTempDirectory("entities");
+		try {
+			var store = new EntityStore(dir);
+			store.load();
+			store.put(entity("a"));
+			store.close();
+			// a record cut short by a crash
+			Files.write(dir.resolve("entities.journal"), new byte[]{1, 0, 0, 0, 100, 0, 0}, StandardOpenOption.APPEND);
+			
+			store = new EntityStore(dir);
+			assertEquals(1, store.load().size());
+			store.put(entity("b"));
+			store.close();
+			
+			assertEquals(2, new EntityStore(dir).load().size());
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	@Test
+	public void testLargeJournal() throws IOException {
+		var dir = Files.createTempDirectory("entities");
+		try {
+			var store = new EntityStore(dir);
+			store.load();
+			// several times the read buffer
+			var padding = "x".repeat(1000);
+			for(int i = 0; i < 300; i++) store.put(entity(i+padding));
+			store.close();
+			var journal = dir.resolve("entities.journal");
+			var valid = Files.size(journal);
+			Files.write(journal, new byte[]{1, 0, 0, 0, 100, 0, 0}, StandardOpenOption.APPEND);
+			
+			store = new EntityStore(dir);
+			var loaded = store.load();
+			store.close();
+			assertEquals(300, loaded.size());
+			assertEquals(299+padding, loaded.get(299).getName());
+			assertEquals(valid, Files.size(journal));
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	@Test
+	public void testStaleJournal() throws IOException {
+		var dir = Files.createTempDirectory("entities");
+		try {
+			var store = new EntityStore(dir);
+			store.load();
+			var a = entity("old");
+			store.put(a);
+			var journal = dir.resolve("entities.journal");
+			var stale = Files.readAllBytes(journal);
+			a.setName("new");
+			store.compact(() -> List.of(a));
+			store.close();
+			// a crash after the snapshot was replaced but before the journal was emptied
+			Files.write(journal, stale);
+			
+			store = new EntityStore(dir);
+			var loaded = store.load();
+			assertEquals(1, loaded.size());
+			assertEquals("new", loaded.get(0).getName());
+			// the journal continues in the snapshot's generation
+			store.put(entity("b"));
+			store.close();
+			assertEquals(2, new EntityStore(dir).load().size());
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	private static Entity entity(String name) {
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		return new Entity(false, address.toString(), name);
+	}
+	
+	private static void delete(Path dir) throws IOException {
+		try(var paths = Files.walk(dir)) {
+			List<Path> list = new ArrayList<>();
+			paths.sorted(Comparator.reverseOrder()).forEach(list::add);
+			for(var p : list) Files.delete(p);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.crypto.KeyPairGenerator;
+import rs.igram.kiribi.io.VarInputStream;
+import rs.igram.kiribi.net.Address;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class EntityTest {
+	static final Descriptor A = descriptor(1);
+	static final Descriptor B = descriptor(2);
+	static final Descriptor C = descriptor(3);
+
+	@Test
+	public void testFullExchange() throws IOException {
+		var local = entity();
+		var remote = entity();
+		local.setGranted(List.of(A, B));
+
+		var data = local.exchange();
+		assertFalse(data.isDelta());
+		assertEquals(1, exchange(local, remote));
+		assertEquals(Set.of(A, B), remote.availableContent());
+		assertTrue(local.acknowledged(data));
+	}
+
+	@Test
+	public void testDeltaExchange() throws IOException {
+		var local = entity();
+		var remote = entity();
+		local.setGranted(List.of(A, B));
+		exchange(local, remote);
+
+		local.setGranted(List.of(B, C));
+		var data = local.exchange();
+		assertTrue(data.isDelta());
+		assertEquals(1, exchange(local, remote));
+		assertEquals(Set.of(B, C), remote.availableContent());
+		assertTrue(local.acknowledged(data));
+
+		// a lost delta is covered by the next one, from the version the peer holds
+		local.setGranted(List.of(A));
+		local.exchange();
+		local.setGranted(List.of(A, C));
+		assertEquals(1, exchange(local, remote));
+		assertEquals(Set.of(A, C), remote.availableContent());
+	}
+
+	@Test
+	public void testBaseMismatch() throws IOException {
+		var local = entity();
+		var remote = entity();
+		local.setGranted(List.of(A, B));
+		exchange(local, remote);
+
+		// the peer no longer holds the version the delta is based on
+		remote.deleted(true, A.getAddress());
+		local.setGranted(List.of(A, B, C));
+		var delta = decode(local.exchange());
+		assertFalse(remote.exchange(delta));
+		assertEquals(-1, remote.known());
+
+		// the change lands within the same exchange, sent in full
+		local.setGranted(List.of(B, C));
+		assertEquals(2, exchange(local, remote));
+		assertEquals(Set.of(B, C), remote.availableContent());
+	}
+
+	@Test
+	public void testRestart() throws IOException {
+		var local = entity();
+		var remote = entity();
+		local.setGranted(List.of(A, B));
+		exchange(local, remote);
+
+		// the peer restarts with its stored entity, holding no version for deltas
+		remote = new Entity(remote.encode());
+		assertEquals(Set.of(A, B), remote.availableContent());
+		assertEquals(-1, remote.known());
+		local.setGranted(List.of(A, C));
+		assertEquals(2, exchange(local, remote));
+		assertEquals(Set.of(A, C), remote.availableContent());
+
+		// after a restart the first exchange is in full
+		local = new Entity(local.encode());
+		local.setGranted(List.of(C));
+		assertFalse(local.exchange().isDelta());
+		assertEquals(1, exchange(local, remote));
+		assertEquals(Set.of(C), remote.availableContent());
+	}
+
+	@Test
+	public void testGrants() throws IOException {
+		var local = entity();
+		var remote = entity();
+		var grants = local.grants();
+		local.setGranted(List.of(A, B));
+		assertNotEquals(grants, grants = local.grants());
+
+		// exchanges and changes to the peer's services leave the grants as they are
+		exchange(local, remote);
+		exchange(remote, local);
+		local.deleted(true, A.getAddress());
+		assertEquals(grants, local.grants());
+
+		local.deleted(false, C.getAddress());
+		assertEquals(grants, local.grants());
+		local.deleted(false, A.getAddress());
+		assertNotEquals(grants, local.grants());
+	}
+
+	// one exchange as run by the EntityManager, returns the number of requests sent
+	private static int exchange(Entity from, Entity to) throws IOException {
+		var data = from.exchange();
+		to.exchange(decode(data));
+		from.acknowledged(to.known());
+		if(!data.isDelta() || from.acknowledged(data)) return 1;
+		data = from.snapshot();
+		assertTrue(to.exchange(decode(data)));
+		from.acknowledged(to.known());
+		assertTrue(from.acknowledged(data));
+		return 2;
+	}
+
+	private static Entity.ExchangeData decode(Entity.ExchangeData data) throws IOException {
+		return new Entity.ExchangeData(new VarInputStream(data.encode()));
+	}
+
+	private static Entity entity() {
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		return new Entity(false, address.toString(), "");
+	}
+
+	private static Descriptor descriptor(long id) {
+		return new Descriptor(new ServiceAddress(ServiceId.parse(id), Address.NULL), "", 0);
+	}
+}
@@ -0,0 +1,134 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.service.util.TimerWheel;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class ExchangeSchedulerTest {
+
+	@Test
+	public void testCoalesce() throws Exception {
+		var timer = new TimerWheel("test", 10, TimeUnit.MILLISECONDS, 64);
+		var executor = Executors.newCachedThreadPool();
+		try {
+			var counts = new ConcurrentHashMap<String, AtomicInteger>();
+			var scheduler = new ExchangeScheduler<String>(timer, executor, s -> s, 
+				s -> counts.computeIfAbsent(s, k -> new AtomicInteger()).incrementAndGet(),
+				50, TimeUnit.MILLISECONDS, 4);
+			var batches = new ArrayList<List<String>>();
+			var done = new CountDownLatch(1);
+			scheduler.setListener((exchanged, failed) -> {
+				batches.add(new ArrayList<>(exchanged));
+				assertTrue(failed.isEmpty());
+				done.countDown();
+			});
+			for(int i = 0; i < 5; i++) scheduler.schedule("a");
+			scheduler.schedule("b");
+			
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(1, batches.size());
+			assertEquals(2, batches.get(0).size());
+			assertEquals(1, counts.get("a").get());
+			assertEquals(1, counts.get("b").get());
+		} finally {
+			timer.shutdown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testParallelismAndFailures() throws Exception {
+		var timer = new TimerWheel("test", 10, TimeUnit.MILLISECONDS, 64);
+		var executor = Executors.newCachedThreadPool();
+		try {
+			var active = new AtomicInteger();
+			var max = new AtomicInteger();
+			var scheduler = new ExchangeScheduler<Integer>(timer, executor, i -> i, i -> {
+				max.accumulateAndGet(active.incrementAndGet(), Math::max);
+				Thread.sleep(20);
+				active.decrementAndGet();
+				if(i % 2 == 0) throw new ServiceException(new IOException("offline"));
+			}, 0, TimeUnit.MILLISECONDS, 2);
+			var result = new int[2];
+			var done = new CountDownLatch(1);
+			scheduler.setListener((exchanged, failed) -> {
+				result[0] = exchanged.size();
+				result[1] = failed.size();
+				done.countDown();
+			});
+			for(int i = 0; i < 10; i++) scheduler.schedule(i);
+			
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(5, result[0]);
+			assertEquals(5, result[1]);
+			assertTrue(max.get() <= 2);
+		} finally {
+			timer.shutdown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSharedThread() throws Exception {
+		var timer = new TimerWheel("test", 10, TimeUnit.MILLISECONDS, 64);
+		// the batch is flushed on the thread which runs the exchanges
+		var executor = Executors.newSingleThreadExecutor();
+		try {
+			var scheduler = new ExchangeScheduler<Integer>(timer, executor, i -> i, i -> {}, 
+				10, TimeUnit.MILLISECONDS, 2);
+			var result = new AtomicInteger();
+			var done = new CountDownLatch(1);
+			scheduler.setListener((exchanged, failed) -> {
+				result.set(exchanged.size());
+				done.countDown();
+			});
+			for(int i = 0; i < 10; i++) scheduler.schedule(i);
+			
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(10, result.get());
+		} finally {
+			timer.shutdown();
+			executor.shutdownNow();
+		}
+	}
+}
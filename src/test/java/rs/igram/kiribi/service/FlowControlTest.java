@@ -0,0 +1,179 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.service.Session.FlowControl;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class FlowControlTest {
+	static final byte CODE = 0x01;
+	static final byte NESTED = 0x02;
+
+	@Test
+	public void testFail() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = new TestSession(FlowControl.FAIL);
+			var c = new TestConnection(admin).start(session, 1);
+			var first = new Listener();
+			session.request(Message.request(CODE), first);
+			var request = c.receive();
+			assertThrows(IOException.class, () -> session.request(Message.request(CODE), new Listener()));
+
+			// answering returns the credit
+			c.send(request.respond(CODE));
+			assertEquals(Message.OK, (byte)first.get(5, TimeUnit.SECONDS));
+			session.request(Message.request(CODE), new Listener());
+			assertNotNull(c.receive());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testQueue() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = new TestSession(FlowControl.QUEUE);
+			var c = new TestConnection(admin).start(session, 1);
+			session.request(Message.request(CODE), new Listener());
+			var request = c.receive();
+			var queued = new Listener();
+			session.request(Message.request(CODE), queued);
+			assertNull(c.poll(100, TimeUnit.MILLISECONDS));
+
+			// sent once the first is answered
+			c.send(request.respond(CODE));
+			var next = c.receive();
+			assertNotEquals(request.uid(), next.uid());
+			c.send(next.respond(CODE));
+			assertEquals(Message.OK, (byte)queued.get(5, TimeUnit.SECONDS));
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testBlockDeadline() throws Exception {
+		var admin = TestConnection.admin();
+		var executor = Executors.newSingleThreadExecutor();
+		try {
+			admin.setRequestTimeout(1, TimeUnit.SECONDS);
+			var session = new TestSession(FlowControl.BLOCK);
+			var c = new TestConnection(admin).start(session, 1);
+			session.request(Message.request(CODE), new Listener());
+			var request = c.receive();
+
+			var blocked = new Listener();
+			var start = System.nanoTime();
+			executor.submit(() -> {
+				session.request(Message.request(CODE), blocked);
+				return null;
+			});
+			// the blocked request gets the credit after 600ms, leaving it 400ms
+			Thread.sleep(600);
+			c.send(request.respond(CODE));
+			assertNotNull(c.receive());
+			assertThrows(Exception.class, () -> blocked.get(5, TimeUnit.SECONDS));
+			var elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue(elapsed < 1400, "expired after "+elapsed+"ms");
+			c.close();
+		} finally {
+			executor.shutdown();
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testBlockOnReader() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = new TestSession(FlowControl.BLOCK);
+			var c = new TestConnection(admin).start(session, 1);
+			session.request(Message.request(CODE), new Listener());
+			assertNotNull(c.receive());
+
+			// the handler runs on the reader, which must not wait for the window
+			c.send(TestConnection.request(NESTED, 100));
+			var response = c.receive();
+			assertEquals(100, response.uid());
+			assertEquals(Message.ERROR, response.status());
+			assertEquals("Request window exhausted", response.in().readUTF());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	// completes with the status of the response
+	static class Listener extends CompletableFuture<Byte> implements ResponseListener {
+		@Override
+		public void response(Message msg) {complete(msg.status());}
+
+		@Override
+		public void error(String msg) {completeExceptionally(new IOException(msg));}
+
+		@Override
+		public byte code() {return CODE;}
+	}
+
+	static class TestSession extends Session {
+		private final FlowControl mode;
+
+		TestSession(FlowControl mode) {
+			super(Scope.PUBLIC, TestConnection.ADDRESS);
+			this.mode = mode;
+		}
+
+		@Override
+		protected void configure() {
+			setFlowControl(mode);
+			// requests processed by the reader one at a time
+			handle(NESTED, request -> {
+				try {
+					request(Message.request(CODE), new Listener());
+					return request.respond(NESTED);
+				} catch(IOException e) {
+					return request.error(e.getMessage());
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class HandlerTableTest {
+
+	@Test
+	public void testAllCodes() throws Exception {
+		var session = new Session(Scope.PUBLIC, TestConnection.ADDRESS) {};
+		var handlers = new RequestHandler[256];
+		for(int i = 0; i < 256; i++) {
+			handlers[i] = request -> request;
+			session.handle((byte)i, handlers[i]);
+		}
+		// negative codes index the upper half
+		for(int i = 0; i < 256; i++) assertSame(handlers[i], session.handler((byte)i));
+		assertSame(handlers[0xff], session.handler((byte)-1));
+		assertSame(handlers[0x80], session.handler(Byte.MIN_VALUE));
+	}
+
+	@Test
+	public void testReplace() throws Exception {
+		var session = new Session(Scope.PUBLIC, TestConnection.ADDRESS) {};
+		assertNull(session.handler((byte)1));
+		RequestHandler first = request -> request;
+		RequestHandler second = request -> request;
+		session.handle((byte)1, first);
+		session.handle((byte)1, second);
+		assertSame(second, session.handler((byte)1));
+		session.handle((byte)1, null);
+		assertNull(session.handler((byte)1));
+	}
+
+	@Test
+	public void testStreamHandlers() throws Exception {
+		var session = new Session(Scope.PUBLIC, TestConnection.ADDRESS) {};
+		StreamHandler handler = (request, stream) -> {};
+		session.handleStream((byte)-2, handler);
+		assertSame(handler, session.streamHandler((byte)0xfe));
+		assertNull(session.handler((byte)-2));
+		assertNull(session.streamHandler((byte)2));
+	}
+
+	@Test
+	public void testUnknownCode() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = new Session(Scope.PUBLIC, TestConnection.ADDRESS) {
+				@Override
+				protected void configure() {
+					handle((byte)-1, request -> request.respond((byte)-1));
+				}
+			};
+			var c = new TestConnection(admin).start(session, 16);
+			c.send(TestConnection.request((byte)-1, 1), TestConnection.request((byte)1, 2));
+			var response = c.receive();
+			assertEquals(Message.OK, response.status());
+			assertEquals((byte)-1, response.code());
+			var error = c.receive();
+			assertEquals(Message.ERROR, error.status());
+			assertEquals("Unknown request: 1", error.in().readUTF());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+}
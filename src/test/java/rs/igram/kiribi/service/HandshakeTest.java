@@ -0,0 +1,102 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class HandshakeTest {
+
+	@Test
+	public void testDeadline() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			admin.setHandshakeLimits(4, 100, MILLISECONDS);
+			// peers which never send their part of the handshake
+			var stalled = new TestConnection[]{new TestConnection(admin), new TestConnection(admin)};
+			for(var c : stalled) admin.server().accepted(c.transponder.endpoint);
+			await(() -> admin.timedOutHandshakes() == 2);
+			for(var c : stalled) assertFalse(c.isOpen());
+			assertEquals(0, admin.acceptedHandshakes());
+			assertEquals(0, admin.rejectedHandshakes());
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testLimit() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			admin.setHandshakeLimits(2, 1, TimeUnit.HOURS);
+			var first = new TestConnection(admin);
+			var second = new TestConnection(admin);
+			admin.server().accepted(first.transponder.endpoint);
+			admin.server().accepted(second.transponder.endpoint);
+
+			// closed at once while two handshakes are pending
+			var rejected = new TestConnection(admin);
+			admin.server().accepted(rejected.transponder.endpoint);
+			assertFalse(rejected.isOpen());
+			assertEquals(1, admin.rejectedHandshakes());
+			assertTrue(first.isOpen());
+			assertTrue(second.isOpen());
+
+			// a failed handshake frees its place
+			first.close();
+			var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			TestConnection next;
+			do {
+				assertTrue(System.nanoTime() - deadline < 0, "timed out");
+				next = new TestConnection(admin);
+				admin.server().accepted(next.transponder.endpoint);
+			} while(!next.isOpen());
+			assertEquals(0, admin.timedOutHandshakes());
+			second.close();
+			next.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	// waits up to 5 seconds for the condition to hold
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() - deadline < 0, "timed out");
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.crypto.KeyPairGenerator;
+import rs.igram.kiribi.net.Address;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class KeyCacheTest {
+
+	@Test
+	public void testAddress() throws Exception {
+		var cache = new KeyCache(4);
+		var key = KeyPairGenerator.generateKeyPair().getPublic();
+		var entry = cache.get(key);
+		assertEquals(new Address(key), entry.address);
+		// the same entry for an equal key
+		assertSame(entry, cache.get(key));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testCapacity() throws Exception {
+		var cache = new KeyCache(4);
+		var first = KeyPairGenerator.generateKeyPair().getPublic();
+		var entry = cache.get(first);
+		for(int i = 0; i < 4; i++) {
+			cache.get(KeyPairGenerator.generateKeyPair().getPublic());
+			assertTrue(cache.size() <= 4);
+		}
+		// the least recently used key was dropped
+		assertNotSame(entry, cache.get(first));
+
+		// a key in use is kept
+		var kept = cache.get(first);
+		for(int i = 0; i < 3; i++) {
+			cache.get(KeyPairGenerator.generateKeyPair().getPublic());
+			assertSame(kept, cache.get(first));
+		}
+		assertEquals(4, cache.size());
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		var cache = new KeyCache(4);
+		var entry = cache.get(KeyPairGenerator.generateKeyPair().getPublic());
+		var lookups = new AtomicInteger();
+		var entity = new Entity(false, entry.address.toString(), "");
+		var resolved = Optional.of(entity);
+
+		assertSame(resolved, entry.entity(a -> {
+			lookups.incrementAndGet();
+			assertEquals(entry.address, a);
+			return resolved;
+		}));
+		// resolved once until the entities change
+		assertSame(resolved, entry.entity(a -> {lookups.incrementAndGet(); return Optional.empty();}));
+		assertEquals(1, lookups.get());
+
+		cache.invalidate();
+		assertEquals(Optional.empty(), entry.entity(a -> {lookups.incrementAndGet(); return Optional.empty();}));
+		assertEquals(2, lookups.get());
+		// the address stays cached
+		assertEquals(1, cache.size());
+	}
+}
@@ -0,0 +1,111 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.io.*;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class MessageBatchTest {
+	static final byte CODE = 0x01;
+
+	@Test
+	public void testEncodeDecode() throws IOException {
+		var batch = new MessageBatch(4);
+		for(int i = 1; i <= 3; i++) {
+			var request = Message.request(CODE);
+			request.uid(i);
+			request.out().writeLong(i * 10);
+			batch.add(request);
+		}
+		assertEquals(3, batch.size());
+		assertFalse(batch.isFull());
+
+		var out = new VarOutputStream();
+		batch.write(out);
+		batch.clear();
+		assertEquals(0, batch.size());
+
+		var received = new MessageBatch(new VarInputStream(out.toByteArray()));
+		assertEquals(3, received.size());
+		for(int i = 0; i < 3; i++) {
+			assertEquals(i + 1, received.get(i).uid());
+			assertEquals((i + 1) * 10, received.get(i).in().readLong());
+		}
+	}
+
+	@Test
+	public void testInvalidSize() throws IOException {
+		for(int size : new int[]{0, -1, MessageBatch.MAX_SIZE + 1, Integer.MAX_VALUE}) {
+			var out = new VarOutputStream();
+			out.writeInt(size);
+			var b = out.toByteArray();
+			assertThrows(IOException.class, () -> new MessageBatch(new VarInputStream(b)));
+		}
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			assertThrows(IllegalArgumentException.class, 
+				() -> admin.setWriteCoalescing(MessageBatch.MAX_SIZE + 1, 0, TimeUnit.MILLISECONDS));
+			admin.setWriteCoalescing(4, 50, TimeUnit.MILLISECONDS);
+			var session = new Session(Scope.PUBLIC, TestConnection.ADDRESS) {
+				@Override
+				protected void configure() {
+					handle(CODE, request -> request.respond(CODE));
+				}
+			};
+			var c = new TestConnection(admin).start(session, 16);
+			var requests = new Message[10];
+			for(int i = 0; i < requests.length; i++) requests[i] = TestConnection.request(CODE, i + 1);
+			c.send(requests);
+
+			// responses written while lingering share a write, up to the batch size
+			for(int i = 1; i <= requests.length; i++) assertEquals(i, c.receive().uid());
+			var total = 0;
+			for(int n : c.writes) {
+				assertTrue(n <= 4);
+				total += n;
+			}
+			assertEquals(requests.length, total);
+			assertTrue(c.writes.size() < requests.length);
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+}
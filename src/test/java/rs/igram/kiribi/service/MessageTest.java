@@ -0,0 +1,260 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.io.*;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class MessageTest {
+	static final byte CODE = 0x01;
+
+	@Test
+	public void testRequestResponse() throws IOException {
+		var request = Message.request(CODE);
+		request.uid(300);
+		request.out().writeLong(1);
+		request.out().writeUTF("two");
+		assertNull(request.in());
+
+		var received = decode(request);
+		assertEquals(300, received.uid());
+		assertEquals(CODE, received.code());
+		assertEquals(1, received.in().readLong());
+		assertEquals("two", received.in().readUTF());
+
+		var response = received.respond(CODE);
+		assertNull(response.in());
+		response.out().writeLong(3);
+
+		var answer = decode(response);
+		assertEquals(300, answer.uid());
+		assertEquals(Message.OK, answer.status());
+		assertEquals(3, answer.in().readLong());
+	}
+
+	@Test
+	public void testError() throws IOException {
+		var request = Message.request(CODE);
+		request.out().writeLong(1);
+		var error = decode(decode(request).error("failed"));
+		assertEquals(Message.ERROR, error.status());
+		assertEquals("failed", error.in().readUTF());
+	}
+
+	@Test
+	public void testUid() throws IOException {
+		for(long uid : new long[]{0, 1, 127, 128, 1l << 35, Long.MAX_VALUE, -1}) {
+			var request = Message.request(CODE);
+			request.uid(uid);
+			assertEquals(uid, decode(request).uid());
+		}
+	}
+
+	@Test
+	public void testOneway() throws IOException {
+		var request = Message.request(CODE);
+		assertFalse(decode(request).oneway());
+		request.oneway(true);
+		var received = decode(request);
+		assertTrue(received.oneway());
+		assertEquals(CODE, received.code());
+		// responses never carry the flag
+		assertFalse(decode(received.respond(CODE)).oneway());
+	}
+
+	@Test
+	public void testChannel() throws IOException {
+		var request = Message.request(CODE);
+		request.channel(300);
+		var received = decode(request);
+		assertEquals(300, received.channel());
+		assertEquals(300, decode(received.respond(CODE)).channel());
+
+		var open = decode(Message.open(2, ServiceId.parse(5)));
+		assertEquals(2, open.channel());
+		assertEquals(ServiceId.parse(5), open.in().read(ServiceId::new));
+	}
+
+	@Test
+	public void testStreamMessages() throws IOException {
+		var chunk = Message.chunk(7, CODE);
+		chunk.out().writeUTF("part");
+		var received = decode(chunk);
+		assertEquals(7, received.uid());
+		assertEquals(CODE, received.code());
+		assertEquals("part", received.in().readUTF());
+
+		var demand = decode(Message.demand(7, 16));
+		assertEquals(7, demand.uid());
+		assertEquals(16, demand.in().readLong());
+	}
+
+	@Test
+	public void testCompression() throws IOException {
+		var deflater = new Deflater(Deflater.BEST_SPEED);
+		var inflater = new Inflater();
+		var b = new byte[10_000];
+		for(int i = 0; i < b.length; i++) b[i] = (byte)(i % 10);
+		var request = Message.request(CODE);
+		request.out().write(b, 0, b.length);
+		request.compress(deflater, 1024);
+		assertTrue(request.isCompressed());
+
+		var received = decode(request);
+		assertTrue(received.isCompressed());
+		received.inflate(inflater);
+		assertFalse(received.isCompressed());
+		var r = new byte[b.length];
+		received.in().readFully(r);
+		assertArrayEquals(b, r);
+		assertThrows(EOFException.class, () -> received.in().readByte());
+	}
+
+	@Test
+	public void testCompressionSkipped() throws IOException {
+		var deflater = new Deflater(Deflater.BEST_SPEED);
+		var small = Message.request(CODE);
+		small.out().writeUTF("small");
+		small.compress(deflater, 1024);
+		assertFalse(small.isCompressed());
+		assertEquals("small", decode(small).in().readUTF());
+
+		var b = new byte[4096];
+		new Random(1).nextBytes(b);
+		var random = Message.request(CODE);
+		random.out().write(b, 0, b.length);
+		random.compress(deflater, 1024);
+		assertFalse(random.isCompressed());
+	}
+
+	@Test
+	public void testCompressionTinyPayload() throws IOException {
+		var deflater = new Deflater(Deflater.BEST_SPEED);
+		for(int n = 1; n <= 5; n++) {
+			var b = new byte[n];
+			var tiny = Message.request(CODE);
+			tiny.out().write(b, 0, n);
+			tiny.compress(deflater, 1);
+			assertFalse(tiny.isCompressed());
+			var r = new byte[n];
+			decode(tiny).in().readFully(r);
+			assertArrayEquals(b, r);
+		}
+	}
+
+	@Test
+	public void testInflatedLengthBound() throws IOException {
+		var inflater = new Inflater();
+		var b = new byte[10_000];
+		var request = Message.request(CODE);
+		request.out().write(b, 0, b.length);
+		request.compress(new Deflater(Deflater.BEST_SPEED), 1024);
+		assertTrue(request.isCompressed());
+		var out = new VarOutputStream();
+		request.write(out);
+		var bytes = out.toByteArray();
+
+		// type, uid, channel, status, code and payload length precede the uncompressed length
+		for(var length : new int[]{-1, Message.MAX_PAYLOAD_SIZE + 1, (bytes.length - 9) * 1032 + 1}) {
+			var tampered = bytes.clone();
+			for(int i = 0; i < 4; i++) tampered[9 + i] = (byte)(length >>> (24 - 8 * i));
+			var received = new Message(new VarInputStream(tampered));
+			var e = assertThrows(IOException.class, () -> received.inflate(inflater));
+			assertEquals("Invalid payload length: "+length, e.getMessage());
+		}
+	}
+
+	@Test
+	public void testPayloadLengthBound() throws IOException {
+		var out = new VarOutputStream();
+		Message.request(CODE).write(out);
+		var bytes = out.toByteArray();
+
+		// type, uid, channel, status and code precede the payload length
+		var length = Message.MAX_PAYLOAD_SIZE + 1;
+		for(int i = 0; i < 4; i++) bytes[5 + i] = (byte)(length >>> (24 - 8 * i));
+		var e = assertThrows(IOException.class, () -> new Message(new VarInputStream(bytes)));
+		assertEquals("Invalid payload length: "+length, e.getMessage());
+	}
+
+	@Test
+	public void testRetain() throws IOException {
+		var request = Message.request(CODE);
+		request.out().writeUTF("two");
+		request.retain();
+
+		var first = new VarOutputStream();
+		request.write(first);
+		request.release();
+		assertFalse(request.isReleased());
+		var second = new VarOutputStream();
+		request.write(second);
+		request.release();
+		assertTrue(request.isReleased());
+		assertArrayEquals(first.toByteArray(), second.toByteArray());
+
+		// a released message can't be reused
+		assertThrows(IllegalStateException.class, () -> request.out());
+		assertThrows(IllegalStateException.class, () -> request.retain());
+	}
+
+	@Test
+	public void testEmptyPayload() throws IOException {
+		var received = decode(Message.request(CODE));
+		assertEquals(CODE, received.code());
+		assertThrows(EOFException.class, () -> received.in().readByte());
+	}
+
+	@Test
+	public void testLargePayload() throws IOException {
+		var b = new byte[100_000];
+		for(int i = 0; i < b.length; i++) b[i] = (byte)i;
+		var request = Message.request(CODE);
+		request.out().writeBytes(b);
+		assertArrayEquals(b, decode(request).in().readBytes());
+	}
+
+	private static Message decode(Message msg) throws IOException {
+		var out = new VarOutputStream();
+		msg.write(out);
+		msg.release();
+		return new Message(new VarInputStream(out.toByteArray()));
+	}
+}
@@ -0,0 +1,185 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class RequestDispatcherTest {
+	static final byte CODE = 0x01;
+
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var running = new AtomicInteger();
+			var max = new AtomicInteger();
+			var started = new CountDownLatch(2);
+			var release = new CountDownLatch(1);
+			var session = new TestSession(2, false, request -> {
+				max.accumulateAndGet(running.incrementAndGet(), Math::max);
+				started.countDown();
+				release.await();
+				running.decrementAndGet();
+				return request.respond(CODE);
+			});
+			var c = new TestConnection(admin).start(session, 16);
+			for(int i = 1; i <= 4; i++) c.send(TestConnection.request(CODE, i));
+
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			assertNull(c.poll(100, TimeUnit.MILLISECONDS));
+			assertEquals(2, max.get());
+
+			release.countDown();
+			for(int i = 0; i < 4; i++) assertEquals(Message.OK, c.receive().status());
+			assertEquals(2, max.get());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testReaderNotBlocked() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var release = new CountDownLatch(1);
+			var session = new TestSession(2, true, request -> {
+				release.await();
+				return request.respond(CODE);
+			});
+			var c = new TestConnection(admin).start(session, 16);
+			// the third request waits for the first two
+			c.send(TestConnection.request(CODE, 1), TestConnection.request(CODE, 2), TestConnection.request(CODE, 3));
+			// while the reader goes on answering what it can itself
+			var unknown = TestConnection.request(CODE, 4);
+			unknown.channel(7);
+			c.send(unknown);
+			var response = c.receive();
+			assertEquals(4, response.uid());
+			assertEquals("Unknown channel: 7", response.in().readUTF());
+
+			release.countDown();
+			for(int i = 1; i <= 3; i++) assertEquals(i, c.receive().uid());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testOrderedResponses() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			// earlier requests take longer
+			var session = new TestSession(4, true, request -> {
+				Thread.sleep(50 * (5 - request.uid()));
+				return request.respond(CODE);
+			});
+			var c = new TestConnection(admin).start(session, 16);
+			for(int i = 1; i <= 4; i++) c.send(TestConnection.request(CODE, i));
+
+			for(int i = 1; i <= 4; i++) assertEquals(i, c.receive().uid());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testHandlerFailure() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			// odd requests fail
+			var session = new TestSession(2, true, request -> {
+				if(request.uid() % 2 == 1) throw new IllegalStateException("failed "+request.uid());
+				return request.respond(CODE);
+			});
+			var c = new TestConnection(admin).start(session, 16);
+			// more failures than the session's limit
+			for(int i = 1; i <= 8; i++) c.send(TestConnection.request(CODE, i));
+
+			for(int i = 1; i <= 8; i++) {
+				var response = c.receive();
+				assertEquals(i, response.uid());
+				if(i % 2 == 1) {
+					assertEquals(Message.ERROR, response.status());
+					assertEquals("Remote error: failed "+i, response.in().readUTF());
+				} else {
+					assertEquals(Message.OK, response.status());
+				}
+			}
+			// and the session still answers
+			c.send(TestConnection.request(CODE, 10));
+			assertEquals(10, c.receive().uid());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@FunctionalInterface
+	interface Handler {
+		Message respond(Message request) throws Exception;
+	}
+
+	static class TestSession extends Session {
+		private final int concurrency;
+		private final boolean ordered;
+		private final Handler handler;
+
+		TestSession(int concurrency, boolean ordered, Handler handler) {
+			super(Scope.PUBLIC, TestConnection.ADDRESS);
+			this.concurrency = concurrency;
+			this.ordered = ordered;
+			this.handler = handler;
+		}
+
+		@Override
+		protected void configure() {
+			setMaxConcurrentRequests(concurrency, ordered);
+			handle(CODE, request -> {
+				try {
+					return handler.respond(request);
+				} catch(IOException | RuntimeException e) {
+					throw e;
+				} catch(Exception e) {
+					throw new IOException(e);
+				}
+			});
+		}
+	}
+}
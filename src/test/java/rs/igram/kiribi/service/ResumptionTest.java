@@ -0,0 +1,217 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.crypto.KeyPairGenerator;
+import rs.igram.kiribi.io.Decoder;
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.io.EncodedStream;
+import rs.igram.kiribi.io.VarInputStream;
+import rs.igram.kiribi.net.Address;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class ResumptionTest {
+	static final ServiceId ID = ServiceId.parse(1);
+	static final ServiceAddress SERVER = new ServiceAddress(ID, Address.NULL);
+
+	@Test
+	public void testResume() throws Exception {
+		var client = new Resumption();
+		var server = server();
+		var address = address();
+		issue(server, client, address);
+
+		var ticket = handshake(client, server);
+		assertNotNull(ticket);
+		assertEquals(ID, ticket.id);
+		assertEquals(address, ticket.client);
+	}
+
+	@Test
+	public void testForgedMac() throws Exception {
+		var client = new Resumption();
+		// a ticket MACed with another server's key
+		issue(server(), client, address());
+
+		assertNull(handshake(client, server()));
+		// the rejected ticket is dropped, so it isn't offered again
+		var channel = new Channel();
+		assertFalse(client.resume(channel, SERVER));
+		assertEquals(1, channel.written.size());
+	}
+
+	@Test
+	public void testExpiredTicket() throws Exception {
+		var client = new Resumption();
+		var server = new Resumption();
+		server.setLifetime(1, TimeUnit.MILLISECONDS);
+		issue(server, client, address());
+		Thread.sleep(10);
+
+		assertNull(handshake(client, server));
+	}
+
+	@Test
+	public void testRevokedTicket() throws Exception {
+		var client = new Resumption();
+		var server = server();
+		var address = address();
+		issue(server, client, address);
+		// the entity changed
+		server.revoke(address);
+
+		assertNull(handshake(client, server));
+		// tickets issued after the change are accepted
+		Thread.sleep(2);
+		issue(server, client, address);
+		assertNotNull(handshake(client, server));
+	}
+
+	@Test
+	public void testRevocationsPruned() throws Exception {
+		// nothing to revoke if no ticket was issued
+		var disabled = new Resumption();
+		disabled.revoke(address());
+		assertEquals(0, disabled.revoked());
+
+		var server = new Resumption();
+		server.setLifetime(200, TimeUnit.MILLISECONDS);
+		server.revoke(address());
+		server.revoke(address());
+		assertEquals(2, server.revoked());
+		// once the tickets they cover have expired
+		Thread.sleep(300);
+		server.revoke(address());
+		assertEquals(1, server.revoked());
+	}
+
+	@Test
+	public void testReplayedNonce() throws Exception {
+		var client = new Resumption();
+		var server = server();
+		issue(server, client, address());
+		var recorded = new Channel();
+		var executor = Executors.newSingleThreadExecutor();
+		try {
+			var peer = recorded.peer();
+			var accepted = executor.submit(() -> server.accept(peer, ID));
+			assertTrue(client.resume(recorded, SERVER));
+			assertNotNull(accepted.get(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+
+		// replaying the client's offer and proof fails against a fresh server nonce
+		var replay = new Channel();
+		replay.in.addAll(recorded.written);
+		assertThrows(IOException.class, () -> server.accept(replay, ID));
+	}
+
+	private static Resumption server() {
+		var server = new Resumption();
+		server.setLifetime(1, TimeUnit.HOURS);
+		return server;
+	}
+
+	private static Address address() {
+		return new Address(KeyPairGenerator.generateKeyPair().getPublic());
+	}
+
+	private static void issue(Resumption server, Resumption client, Address address) throws IOException {
+		var channel = new Channel();
+		server.issue(channel.peer(), ID, address);
+		client.receive(channel, SERVER);
+	}
+
+	// runs a resumption handshake, returning the ticket the server accepted or null
+	private static Resumption.Ticket handshake(Resumption client, Resumption server) throws Exception {
+		var channel = new Channel();
+		var executor = Executors.newSingleThreadExecutor();
+		try {
+			var peer = channel.peer();
+			var accepted = executor.submit(() -> server.accept(peer, ID));
+			var resumed = client.resume(channel, SERVER);
+			var ticket = accepted.get(5, TimeUnit.SECONDS);
+			assertEquals(resumed, ticket != null);
+			return ticket;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// one end of an in memory handshake, recording what it writes
+	private static final class Channel implements EncodedStream {
+		final BlockingQueue<byte[]> in;
+		final BlockingQueue<byte[]> out;
+		final List<byte[]> written = new ArrayList<>();
+
+		Channel() {
+			this(new LinkedBlockingQueue<>(), new LinkedBlockingQueue<>());
+		}
+
+		private Channel(BlockingQueue<byte[]> in, BlockingQueue<byte[]> out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		Channel peer() {
+			return new Channel(out, in);
+		}
+
+		@Override
+		public <T> T read(Decoder<T> decoder) throws IOException {
+			try {
+				var b = in.poll(5, TimeUnit.SECONDS);
+				if(b == null) throw new IOException("Timed out");
+				return decoder.decode(new VarInputStream(b));
+			} catch(InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public void write(Encodable e) throws IOException {
+			var b = e.encode();
+			written.add(b);
+			out.add(b);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class SessionAsyncTest {
+	static final byte CODE = 0x01;
+
+	@Test
+	public void testRequestAsync() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = session(admin);
+			var c = new TestConnection(admin).start(session, 16);
+			CompletableFuture<Long> future = session.requestAsync(5, f -> add(session, f, 1, 2));
+			var request = c.receive();
+			assertFalse(future.isDone());
+
+			var a = request.in().readLong();
+			var b = request.in().readLong();
+			var response = request.respond(CODE);
+			response.out().writeLong(a + b);
+			c.send(response);
+			assertEquals(3l, (long)future.get(5, SECONDS));
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testSubmitAsync() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = session(admin);
+			var c = new TestConnection(admin).start(session, 16);
+			var future = session.submitAsync(5, f -> 
+				session.request(Message.request(CODE), new Session.ResponseAdapter(CODE, r -> f.complete(null)))
+			);
+			var request = c.receive();
+			assertFalse(future.isDone());
+			c.send(request.respond(CODE));
+			assertNull(future.get(5, SECONDS));
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = session(admin);
+			var c = new TestConnection(admin).start(session, 16);
+			CompletableFuture<Long> future = session.requestAsync(1, f -> add(session, f, 1, 2));
+			assertNotNull(c.receive());
+
+			// never answered
+			var e = assertThrows(ExecutionException.class, () -> future.get(5, SECONDS));
+			assertTrue(e.getCause() instanceof ServiceException);
+			assertEquals(ServiceException.Type.TIMEOUT, ((ServiceException)e.getCause()).getType());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = session(admin);
+			var c = new TestConnection(admin).start(session, 16);
+			CompletableFuture<Long> future = session.requestAsync(5, f -> {throw new IOException("failed");});
+
+			var e = assertThrows(ExecutionException.class, () -> future.get(5, SECONDS));
+			assertTrue(e.getCause() instanceof ServiceException);
+			assertEquals(ServiceException.Type.IO, ((ServiceException)e.getCause()).getType());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	private static Session session(ServiceAdmin admin) {
+		var session = new Session(Scope.PUBLIC, TestConnection.ADDRESS) {};
+		session.admin = admin;
+		return session;
+	}
+
+	private static void add(Session session, CompletableFuture<Long> future, long a, long b) throws IOException {
+		var request = Message.request(CODE);
+		request.out().writeLong(a);
+		request.out().writeLong(b);
+		session.request(request, new Session.ResponseAdapter(
+			CODE, 
+			response -> future.complete(response.in().readLong()),
+			error -> future.completeExceptionally(new IOException(error))
+		));
+	}
+}
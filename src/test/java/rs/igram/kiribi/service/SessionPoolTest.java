@@ -0,0 +1,172 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.net.Address;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class SessionPoolTest {
+	static final ServiceAddress ADDRESS = new ServiceAddress(ServiceId.parse(1), Address.NULL);
+
+	@Test
+	public void testBorrowRelease() throws Exception {
+		var created = new AtomicInteger();
+		var pool = new SessionPool<TestSession>(null, a -> {
+			created.incrementAndGet();
+			return new TestSession(a);
+		}, 0, 2, 1, TimeUnit.MINUTES);
+
+		var s1 = pool.borrow(ADDRESS, 1, TimeUnit.SECONDS);
+		assertTrue(s1.isOpen());
+		pool.release(s1);
+		assertSame(s1, pool.borrow(ADDRESS, 1, TimeUnit.SECONDS));
+		assertEquals(1, created.get());
+
+		// dead idle sessions are replaced
+		pool.release(s1);
+		s1.close();
+		var s2 = pool.borrow(ADDRESS, 1, TimeUnit.SECONDS);
+		assertNotSame(s1, s2);
+		assertEquals(2, created.get());
+	}
+
+	@Test
+	public void testDoubleRelease() throws Exception {
+		var pool = new SessionPool<TestSession>(null, TestSession::new, 0, 2, 1, TimeUnit.MINUTES);
+		var s1 = pool.borrow(ADDRESS, 1, TimeUnit.SECONDS);
+		pool.release(s1);
+		pool.release(s1);
+		// handed out once only
+		assertSame(s1, pool.borrow(ADDRESS, 1, TimeUnit.SECONDS));
+		assertNotSame(s1, pool.borrow(ADDRESS, 1, TimeUnit.SECONDS));
+
+		// nor is a returned session invalidated
+		pool.release(s1);
+		pool.invalidate(s1);
+		assertTrue(s1.isOpen());
+		assertSame(s1, pool.borrow(ADDRESS, 1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testWarming() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var created = new AtomicInteger();
+			var connect = new AtomicReference<>(new CountDownLatch(0));
+			var pool = new SessionPool<TestSession>(admin, a -> {
+				created.incrementAndGet();
+				return new TestSession(a) {
+					@Override
+					public void connect(ServiceAdmin admin) {
+						try {
+							connect.get().await();
+						} catch(InterruptedException e) {}
+						super.connect(admin);
+					}
+				};
+			}, 2, 4, 1, TimeUnit.MINUTES);
+			pool.release(pool.borrow(ADDRESS, 1, TimeUnit.SECONDS));
+			created.set(0);
+			var slow = new CountDownLatch(1);
+			connect.set(slow);
+
+			// connects one more, and nothing while it is connecting
+			pool.maintain();
+			pool.maintain();
+			slow.countDown();
+			Thread.sleep(100);
+			pool.maintain();
+			assertEquals(1, created.get());
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testMaxSize() throws Exception {
+		var pool = new SessionPool<TestSession>(null, TestSession::new, 0, 1, 1, TimeUnit.MINUTES);
+		var s1 = pool.borrow(ADDRESS, 1, TimeUnit.SECONDS);
+		var e = assertThrows(ServiceException.class, () -> pool.borrow(ADDRESS, 10, TimeUnit.MILLISECONDS));
+		assertEquals(ServiceException.Type.TIMEOUT, e.getType());
+
+		pool.invalidate(s1);
+		assertFalse(s1.isOpen());
+		assertTrue(pool.borrow(ADDRESS, 1, TimeUnit.SECONDS).isOpen());
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		var pool = new SessionPool<TestSession>(null, TestSession::new, 0, 2, 1, TimeUnit.MILLISECONDS);
+		var s1 = pool.borrow(ADDRESS, 1, TimeUnit.SECONDS);
+		pool.release(s1);
+		Thread.sleep(5);
+		pool.maintain();
+		assertFalse(s1.isOpen());
+		assertNotSame(s1, pool.borrow(ADDRESS, 1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		var pool = new SessionPool<TestSession>(null, TestSession::new, 0, 2, 1, TimeUnit.MINUTES);
+		var s1 = pool.borrow(ADDRESS, 1, TimeUnit.SECONDS);
+		var s2 = pool.borrow(ADDRESS, 1, TimeUnit.SECONDS);
+		pool.release(s1);
+		pool.close();
+		assertFalse(s1.isOpen());
+		pool.release(s2);
+		assertFalse(s2.isOpen());
+	}
+
+	static class TestSession extends Session {
+		private boolean open;
+
+		TestSession(ServiceAddress address) {
+			super(Scope.PUBLIC, address);
+		}
+
+		@Override
+		public void connect(ServiceAdmin admin) {open = true;}
+
+		@Override
+		public boolean isOpen() {return open;}
+
+		@Override
+		public void close() {open = false;}
+	}
+}
@@ -0,0 +1,240 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class StreamTest {
+	static final byte CODE = 0x01;
+	static final byte CHUNK = 2;
+	static final byte DEMAND = 3;
+
+	@Test
+	public void testDemand() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var c = new TestConnection(admin).start(new TestSession(5, -1), 16);
+			c.send(TestConnection.request(CODE, 1));
+			// nothing is sent without demand
+			assertNull(c.poll(100, TimeUnit.MILLISECONDS));
+
+			c.send(Message.demand(1, 2));
+			for(int i = 0; i < 2; i++) assertEquals(i, chunk(c.receive()));
+			assertNull(c.poll(100, TimeUnit.MILLISECONDS));
+
+			c.send(Message.demand(1, 10));
+			for(int i = 2; i < 5; i++) assertEquals(i, chunk(c.receive()));
+			var end = c.receive();
+			assertEquals(1, end.uid());
+			assertEquals(Message.OK, end.status());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testHandlerFailure() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var c = new TestConnection(admin).start(new TestSession(5, 1), 16);
+			c.send(TestConnection.request(CODE, 1), Message.demand(1, 10));
+			assertEquals(0, chunk(c.receive()));
+			// the stream still ends, returning the requester's credit
+			var end = c.receive();
+			assertEquals(1, end.uid());
+			assertEquals(Message.ERROR, end.status());
+			assertEquals("Remote error: failed", end.in().readUTF());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testTransferSourceFailure() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = new Session(Scope.PUBLIC, TestConnection.ADDRESS) {
+				@Override
+				protected void configure() {
+					handleTransfer(CODE, (request, offset) -> {throw new IllegalStateException("failed");});
+				}
+			};
+			var c = new TestConnection(admin).start(session, 16);
+			var request = Transfer.request(CODE, 0, null);
+			request.uid(1);
+			c.send(request, Message.demand(1, 4));
+			var end = c.receive();
+			assertEquals(1, end.uid());
+			assertEquals(Message.ERROR, end.status());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var c = new TestConnection(admin).start(new TestSession(5, -1), 16);
+			c.send(TestConnection.request(CODE, 1), Message.demand(1, 1));
+			assertEquals(0, chunk(c.receive()));
+			c.send(Message.demand(1, 0));
+			// ended even though cancelled
+			var end = c.receive();
+			assertEquals(1, end.uid());
+			assertEquals(Message.ERROR, end.status());
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testSubscribe() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = new TestSession(0, -1);
+			var c = new TestConnection(admin).start(session, 16);
+			var subscriber = new TestSubscriber();
+			session.stream(Message.request(CODE)).subscribe(subscriber);
+
+			var request = c.receive();
+			var uid = request.uid();
+			var demand = c.receive();
+			assertEquals(uid, demand.uid());
+			assertEquals(1, demand.in().readLong());
+			for(int i = 0; i < 3; i++) {
+				var chunk = Message.chunk(uid, CODE);
+				chunk.out().writeInt(i);
+				c.send(chunk);
+				// asks for the next one as each is processed
+				assertEquals(1, c.receive().in().readLong());
+			}
+			c.send(request.respond(CODE));
+			subscriber.done.get(5, TimeUnit.SECONDS);
+			assertEquals(List.of(0, 1, 2), subscriber.values);
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	@Test
+	public void testSubscribeError() throws Exception {
+		var admin = TestConnection.admin();
+		try {
+			var session = new TestSession(0, -1);
+			var c = new TestConnection(admin).start(session, 16);
+			var subscriber = new TestSubscriber();
+			session.stream(Message.request(CODE)).subscribe(subscriber);
+
+			var request = c.receive();
+			c.receive();
+			c.send(request.error("failed"));
+			var e = assertThrows(ExecutionException.class, () -> subscriber.done.get(5, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof IOException);
+			c.close();
+		} finally {
+			admin.shutdown();
+		}
+	}
+
+	private static int chunk(Message msg) throws IOException {
+		assertEquals(CHUNK, msg.type());
+		assertEquals(1, msg.uid());
+		return msg.in().readInt();
+	}
+
+	// streams count ints, failing instead of sending the chunk at failAt
+	static class TestSession extends Session {
+		private final int count;
+		private final int failAt;
+
+		TestSession(int count, int failAt) {
+			super(Scope.PUBLIC, TestConnection.ADDRESS);
+			this.count = count;
+			this.failAt = failAt;
+		}
+
+		@Override
+		protected void configure() {
+			handleStream(CODE, (request, stream) -> {
+				for(int i = 0; i < count; i++) {
+					if(i == failAt) throw new IllegalStateException("failed");
+					var chunk = stream.chunk(CODE);
+					chunk.out().writeInt(i);
+					stream.send(chunk);
+				}
+			});
+		}
+	}
+
+	// requests one chunk at a time
+	static class TestSubscriber implements Flow.Subscriber<Message> {
+		final List<Integer> values = new CopyOnWriteArrayList<>();
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		private Flow.Subscription subscription;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(Message chunk) {
+			try {
+				values.add(chunk.in().readInt());
+			} catch(IOException e) {
+				done.completeExceptionally(e);
+			}
+			subscription.request(1);
+		}
+
+		@Override
+		public void onError(Throwable t) {done.completeExceptionally(t);}
+
+		@Override
+		public void onComplete() {done.complete(null);}
+	}
+}
@@ -0,0 +1,170 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import rs.igram.kiribi.io.Decoder;
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.io.VarInputStream;
+import rs.igram.kiribi.io.VarOutputStream;
+import rs.igram.kiribi.net.Address;
+import rs.igram.kiribi.net.Endpoint;
+import rs.igram.kiribi.net.NetworkMonitor;
+
+/**
+ * Connects a transponder to an in memory endpoint, the test playing its peer.
+ *
+ * @author Michael Sargent
+ */
+final class TestConnection {
+	static final ServiceAddress ADDRESS = new ServiceAddress(ServiceId.parse(1), Address.NULL);
+	// no NAT traversal server runs there, nothing is connected to
+	private static final int SERVER_PORT = 5099;
+	private static final AtomicInteger ports = new AtomicInteger(5100);
+	
+	final Transponder transponder;
+	// the sizes of the batches written by the transponder
+	final List<Integer> writes = Collections.synchronizedList(new ArrayList<>());
+	// batches read by the transponder
+	private final BlockingQueue<byte[]> in = new LinkedBlockingQueue<>();
+	// messages written by the transponder
+	private final BlockingQueue<Message> out = new LinkedBlockingQueue<>();
+	private volatile boolean open = true;
+	
+	TestConnection(ServiceAdmin admin) {
+		transponder = new Transponder(admin, admin.server().connections);
+		transponder.endpoint = endpoint();
+	}
+	
+	// a service admin on its own port, shut down by the test
+	static ServiceAdmin admin() {
+		var port = ports.getAndIncrement();
+		var server = new InetSocketAddress(NetworkMonitor.inet(), SERVER_PORT);
+		return new Peer(port, server, Peer.Type.UDP).admin;
+	}
+	
+	// starts the transponder as if authenticated, the peer advertising the given window
+	TestConnection start(Session session, int window) {
+		transponder.session = session;
+		transponder.start(new ConnectionSettings(window, false));
+		return this;
+	}
+	
+	// a request from the peer
+	static Message request(byte code, long uid) {
+		var request = Message.request(code);
+		request.uid(uid);
+		return request;
+	}
+	
+	// sends the messages to the transponder in a single batch
+	void send(Message... messages) throws IOException {
+		var batch = new MessageBatch(messages.length);
+		for(var m : messages) batch.add(m);
+		var encoded = new VarOutputStream();
+		batch.write(encoded);
+		batch.clear();
+		in.add(encoded.toByteArray());
+	}
+	
+	// the next message written by the transponder
+	Message receive() throws InterruptedException {
+		var msg = out.poll(5, TimeUnit.SECONDS);
+		assertNotNull(msg, "no message written");
+		return msg;
+	}
+	
+	// the next message written within the given time, null if there is none
+	Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return out.poll(timeout, unit);
+	}
+	
+	boolean isOpen() {return open;}
+	
+	void close() {
+		open = false;
+		transponder.close();
+	}
+	
+	private Endpoint endpoint() {
+		return (Endpoint)Proxy.newProxyInstance(Endpoint.class.getClassLoader(), new Class<?>[]{Endpoint.class}, 
+			(proxy, method, args) -> {
+				switch(method.getName()) {
+				case "read":
+					return read((Decoder<?>)args[0]);
+				case "write":
+					write((Encodable)args[0]);
+					return null;
+				case "isOpen":
+					return open;
+				case "close":
+					open = false;
+					return null;
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "TestConnection";
+				default:
+					return null;
+				}
+			});
+	}
+	
+	private Object read(Decoder<?> decoder) throws IOException {
+		try {
+			while(open) {
+				var b = in.poll(10, TimeUnit.MILLISECONDS);
+				if(b != null) return decoder.decode(new VarInputStream(b));
+			}
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException("Interrupted");
+		}
+		throw new IOException("Endpoint closed");
+	}
+	
+	private void write(Encodable e) throws IOException {
+		if(!open) throw new IOException("Endpoint closed");
+		var encoded = new VarOutputStream();
+		e.write(encoded);
+		var batch = new MessageBatch(new VarInputStream(encoded.toByteArray()));
+		writes.add(batch.size());
+		for(int i = 0; i < batch.size(); i++) out.add(batch.get(i));
+	}
+}
@@ -0,0 +1,129 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.io.*;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class TransferTest {
+	static final byte CODE = 0x01;
+
+	@Test
+	public void testReceive() throws Exception {
+		var data = new ByteArrayOutputStream();
+		var future = new CompletableFuture<Long>();
+		var subscription = new TestSubscription();
+		var receiver = Transfer.receiver(10, (offset, b, off, len) -> data.write(b, off, len), future);
+		receiver.onSubscribe(subscription);
+		receiver.onNext(chunk(10, new byte[]{1, 2, 3}, false));
+		receiver.onNext(chunk(13, new byte[]{4, 5}, false));
+		receiver.onComplete();
+
+		assertEquals(15l, (long)future.get());
+		assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, data.toByteArray());
+		assertEquals(6, subscription.requested);
+		assertFalse(subscription.cancelled);
+	}
+
+	@Test
+	public void testChecksumMismatch() throws Exception {
+		var future = new CompletableFuture<Long>();
+		var subscription = new TestSubscription();
+		var receiver = Transfer.receiver(0, (offset, b, off, len) -> fail("corrupt chunk written"), future);
+		receiver.onSubscribe(subscription);
+		receiver.onNext(chunk(0, new byte[]{1, 2, 3}, true));
+
+		assertTrue(subscription.cancelled);
+		var e = assertThrows(ExecutionException.class, () -> future.get());
+		assertTrue(e.getCause() instanceof IOException);
+	}
+
+	@Test
+	public void testUnexpectedOffset() throws Exception {
+		var future = new CompletableFuture<Long>();
+		var subscription = new TestSubscription();
+		var receiver = Transfer.receiver(5, (offset, b, off, len) -> fail("chunk written"), future);
+		receiver.onSubscribe(subscription);
+		receiver.onNext(chunk(0, new byte[]{1}, false));
+
+		assertTrue(subscription.cancelled);
+		assertTrue(future.isCompletedExceptionally());
+	}
+
+	@Test
+	public void testSinkFailure() throws Exception {
+		var future = new CompletableFuture<Long>();
+		var subscription = new TestSubscription();
+		var receiver = Transfer.receiver(0, (offset, b, off, len) -> {throw new IllegalStateException("disk full");}, future);
+		receiver.onSubscribe(subscription);
+		receiver.onNext(chunk(0, new byte[]{1, 2, 3}, false));
+
+		assertTrue(subscription.cancelled);
+		var e = assertThrows(ExecutionException.class, () -> future.get());
+		assertTrue(e.getCause() instanceof IllegalStateException);
+	}
+
+	private static Message chunk(long offset, byte[] b, boolean corrupt) throws IOException {
+		var crc = new CRC32C();
+		crc.update(b, 0, b.length);
+		var chunk = Message.chunk(1, CODE);
+		var out = chunk.out();
+		out.writeLong(offset);
+		out.writeInt(b.length);
+		out.write(b, 0, b.length);
+		out.writeLong(corrupt ? ~crc.getValue() : crc.getValue());
+		var encoded = new VarOutputStream();
+		chunk.write(encoded);
+		chunk.release();
+		return new Message(new VarInputStream(encoded.toByteArray()));
+	}
+
+	private static class TestSubscription implements Flow.Subscription {
+		long requested;
+		boolean cancelled;
+
+		@Override
+		public void request(long n) {requested += n;}
+
+		@Override
+		public void cancel() {cancelled = true;}
+	}
+}
@@ -0,0 +1,218 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class ConcurrentLongMapTest {
+	static final int PRODUCERS = 4;
+	static final int REQUESTS = 100_000;
+	static final int ROUNDS = 200_000;
+
+	@Test
+	public void testPutGetRemove() {
+		var map = new ConcurrentLongMap<String>();
+		assertNull(map.put(1l, "a"));
+		assertNull(map.put(0l, "zero"));
+		assertNull(map.put(-1l, "minus"));
+		assertEquals("a", map.put(1l, "b"));
+		assertEquals(3, map.size());
+		assertEquals("b", map.get(1l));
+		assertEquals("zero", map.get(0l));
+		assertTrue(map.containsKey(-1l));
+		assertFalse(map.containsKey(2l));
+		assertFalse(map.remove(1l, "a"));
+		assertTrue(map.remove(1l, "b"));
+		assertEquals("zero", map.remove(0l));
+		assertEquals("minus", map.remove(-1l));
+		assertNull(map.remove(-1l));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void testChurn() {
+		// random uids never repeat, so tombstones must be dropped by migration
+		var map = new ConcurrentLongMap<Long>();
+		var random = ThreadLocalRandom.current();
+		var live = new long[64];
+		for(int i = 0; i < ROUNDS; i++) {
+			var slot = i % live.length;
+			if(live[slot] != 0) assertEquals(live[slot], (long)map.remove(live[slot]));
+			var key = random.nextLong() | 1l;
+			live[slot] = key;
+			map.put(key, key);
+		}
+		assertEquals(live.length, map.size());
+		for(long key : live) assertEquals(key, (long)map.get(key));
+	}
+
+	@Test
+	public void testConcurrentPutRemove() throws Exception {
+		// many requesting threads put, a single reader removes - as in Transponder
+		var map = new ConcurrentLongMap<Long>();
+		var queue = new LinkedBlockingQueue<Long>();
+		var removed = new AtomicInteger();
+		var executor = Executors.newFixedThreadPool(PRODUCERS + 1);
+		var producers = new ArrayList<Future<?>>();
+		try {
+			for(int p = 0; p < PRODUCERS; p++) {
+				final long base = (p + 1l) << 40;
+				producers.add(executor.submit(() -> {
+					for(long i = 1; i <= REQUESTS; i++) {
+						var key = base + i;
+						assertNull(map.put(key, key));
+						queue.add(key);
+					}
+					return null;
+				}));
+			}
+			var reader = executor.submit(() -> {
+				for(int i = 0; i < PRODUCERS * REQUESTS; i++) {
+					long key = queue.take();
+					var value = map.remove(key);
+					assertNotNull(value);
+					assertEquals(key, (long)value);
+					removed.incrementAndGet();
+				}
+				return null;
+			});
+			for(var producer : producers) producer.get(60, TimeUnit.SECONDS);
+			reader.get(60, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(PRODUCERS * REQUESTS, removed.get());
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void testConcurrentMigration() throws Exception {
+		// every thread puts and removes its own keys, migrating the table repeatedly
+		var map = new ConcurrentLongMap<Long>();
+		var executor = Executors.newFixedThreadPool(PRODUCERS);
+		var writers = new ArrayList<Future<long[]>>();
+		try {
+			for(int p = 0; p < PRODUCERS; p++) {
+				final long base = (p + 1l) << 40;
+				writers.add(executor.submit(() -> {
+					var random = ThreadLocalRandom.current();
+					var live = new long[256];
+					for(int i = 1; i <= REQUESTS; i++) {
+						var slot = random.nextInt(live.length);
+						if(live[slot] != 0) assertEquals(live[slot], (long)map.remove(live[slot]));
+						var key = base + i;
+						assertNull(map.put(key, key));
+						assertEquals(key, (long)map.get(key));
+						live[slot] = key;
+					}
+					return live;
+				}));
+			}
+			var expected = new HashMap<Long, Long>();
+			for(var writer : writers) {
+				for(long key : writer.get(60, TimeUnit.SECONDS)) {
+					if(key != 0) expected.put(key, key);
+				}
+			}
+			assertEquals(expected.size(), map.size());
+			var visited = new HashMap<Long, Long>();
+			map.forEach((key, value) -> assertNull(visited.put(key, value)));
+			assertEquals(expected, visited);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testAllocation() {
+		var bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)) return;
+		var mx = (com.sun.management.ThreadMXBean)bean;
+		if(!mx.isThreadAllocatedMemorySupported()) return;
+		mx.setThreadAllocatedMemoryEnabled(true);
+
+		var listeners = new Object[1];
+		var before = new HashMap<Long, Object[]>();
+		var after = new ConcurrentLongMap<Object[]>();
+		// room for every uid, so no migration runs
+		var sized = new ConcurrentLongMap<Object[]>(4 * ROUNDS);
+		// warm up
+		requestPath(before, listeners, 1);
+		requestPath(after, listeners, 1);
+		requestPath(new ConcurrentLongMap<>(4 * ROUNDS), listeners, 1);
+
+		var id = Thread.currentThread().getId();
+		var start = mx.getThreadAllocatedBytes(id);
+		requestPath(before, listeners, ROUNDS + 1);
+		var hashMapBytes = mx.getThreadAllocatedBytes(id) - start;
+
+		start = mx.getThreadAllocatedBytes(id);
+		requestPath(after, listeners, ROUNDS + 1);
+		var longMapBytes = mx.getThreadAllocatedBytes(id) - start;
+
+		start = mx.getThreadAllocatedBytes(id);
+		requestPath(sized, listeners, ROUNDS + 1);
+		var hotPathBytes = mx.getThreadAllocatedBytes(id) - start;
+
+		var message = "bytes per request - HashMap: " + (hashMapBytes / ROUNDS)
+			+ " ConcurrentLongMap: " + (longMapBytes / ROUNDS)
+			+ " without migrations: " + (hotPathBytes / ROUNDS);
+		assertTrue(longMapBytes < hashMapBytes, message);
+		// no boxed key or entry per request - only the amortized table migrations
+		assertTrue(longMapBytes / ROUNDS < 40, message);
+		// put, lookup and remove allocate nothing at all
+		assertEquals(0, hotPathBytes / ROUNDS, message);
+	}
+
+	// put, validate and remove monotonic uids as Transponder does for each request
+	private static void requestPath(Map<Long, Object[]> map, Object[] listeners, long first) {
+		for(long uid = first; uid < first + ROUNDS; uid++) {
+			map.put(uid, listeners);
+			if(map.containsKey(uid)) map.remove(uid);
+		}
+	}
+
+	private static void requestPath(ConcurrentLongMap<Object[]> map, Object[] listeners, long first) {
+		for(long uid = first; uid < first + ROUNDS; uid++) {
+			map.put(uid, listeners);
+			if(map.containsKey(uid)) map.remove(uid);
+		}
+	}
+}
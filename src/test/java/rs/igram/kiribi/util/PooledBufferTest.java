@@ -0,0 +1,80 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class PooledBufferTest {
+
+	@Test
+	public void testDoubleRelease() throws Exception {
+		var buffer = BufferPool.acquire(1000);
+		buffer.release();
+		buffer.release();
+
+		// the buffer went back to the pool once, so only one handle gets it
+		var b1 = BufferPool.acquire(1000);
+		var b2 = BufferPool.acquire(1000);
+		assertNotSame(b1.buffer(), b2.buffer());
+		b1.release();
+		b2.release();
+	}
+
+	@Test
+	public void testRetain() throws Exception {
+		var buffer = BufferPool.acquire(1000);
+		buffer.retain();
+		assertTrue(buffer.isShared());
+		assertFalse(buffer.release());
+		assertNotNull(buffer.buffer());
+		assertTrue(buffer.release());
+		assertFalse(buffer.release());
+		assertThrows(IllegalStateException.class, () -> buffer.retain());
+	}
+
+	@Test
+	public void testGrow() throws Exception {
+		var buffer = BufferPool.acquire(256);
+		var out = buffer.outputStream();
+		var b = new byte[1000];
+		for(int i = 0; i < b.length; i++) b[i] = (byte)i;
+		out.write(b, 0, b.length);
+		assertTrue(buffer.buffer().capacity() >= b.length);
+
+		buffer.buffer().flip();
+		var r = new byte[b.length];
+		assertEquals(b.length, buffer.inputStream().read(r, 0, r.length));
+		assertArrayEquals(b, r);
+		buffer.release();
+	}
+}
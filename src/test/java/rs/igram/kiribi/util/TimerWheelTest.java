@@ -0,0 +1,130 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+ 
+package rs.igram.kiribi.service.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class TimerWheelTest {
+
+	@Test
+	public void testExpire() throws Exception {
+		var wheel = new TimerWheel("test", 10, MILLISECONDS, 8);
+		try {
+			// longer than one rotation of the wheel
+			var latch = new CountDownLatch(1);
+			var timeout = new TestTimeout(latch);
+			var start = System.nanoTime();
+			wheel.schedule(timeout, 200, MILLISECONDS);
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(200));
+			assertTrue(timeout.isExpired());
+			assertFalse(timeout.cancel());
+		} finally {
+			wheel.shutdown();
+		}
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		var wheel = new TimerWheel("test", 10, MILLISECONDS, 8);
+		try {
+			var expired = new AtomicInteger();
+			var latch = new CountDownLatch(1);
+			var cancelled = new TimerWheel.Timeout() {
+				@Override
+				protected void expired() {expired.incrementAndGet();}
+			};
+			wheel.schedule(cancelled, 20, MILLISECONDS);
+			wheel.schedule(new TestTimeout(latch), 100, MILLISECONDS);
+			assertTrue(cancelled.cancel());
+			assertTrue(cancelled.isCancelled());
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals(0, expired.get());
+		} finally {
+			wheel.shutdown();
+		}
+	}
+
+	@Test
+	public void testLargeDelay() throws Exception {
+		var wheel = new TimerWheel("test", 10, MILLISECONDS, 8);
+		try {
+			var latch = new CountDownLatch(1);
+			var timeout = new TestTimeout(latch);
+			wheel.schedule(timeout, Long.MAX_VALUE, TimeUnit.DAYS);
+			assertFalse(latch.await(100, MILLISECONDS));
+			assertFalse(timeout.isExpired());
+			assertTrue(timeout.cancel());
+		} finally {
+			wheel.shutdown();
+		}
+	}
+
+	@Test
+	public void testCancelUnlinks() throws Exception {
+		var wheel = new TimerWheel("test", 10, MILLISECONDS, 8);
+		try {
+			var timeouts = new TestTimeout[100];
+			for(int i = 0; i < timeouts.length; i++) {
+				timeouts[i] = new TestTimeout(new CountDownLatch(1));
+				wheel.schedule(timeouts[i], 1, TimeUnit.HOURS);
+			}
+			// wait until they have been moved into their buckets
+			var latch = new CountDownLatch(1);
+			wheel.schedule(new TestTimeout(latch), 20, MILLISECONDS);
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals(timeouts.length, wheel.size());
+
+			for(var t : timeouts) assertTrue(t.cancel());
+			assertEquals(0, wheel.size());
+		} finally {
+			wheel.shutdown();
+		}
+	}
+
+	static class TestTimeout extends TimerWheel.Timeout {
+		final CountDownLatch latch;
+
+		TestTimeout(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@Override
+		protected void expired() {latch.countDown();}
+	}
+}